@@ -0,0 +1,116 @@
+package com.jciombalo.utils.persistence.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.jciombalo.utils.persistence.jpa.QueryPlanCache;
+
+/**
+ * <p>
+ * Embedded H2 database shared by all the benchmark threads of a trial. The
+ * <code>persons</code>/<code>skills</code> schema is created from the same
+ * <code>create-db.sql</code> script used by the unit tests, and then seeded
+ * with {@link #rows} persons spread over {@link #SKILLS} skills.
+ * </p>
+ * <p>
+ * The number of rows can be chosen from the command line, e.g.
+ * <code>java -jar target/benchmarks.jar -p rows=5000000</code>.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDataset {
+
+	public static final String PERSISTENCE_UNIT = "persistence-test";
+	public static final int SKILLS = 50;
+	public static final int MAX_AGE = 100;
+
+	private static final int ID_BLOCK_SIZE = 100000000;
+
+	@Param({ "10000", "100000", "1000000", "5000000" })
+	public int rows;
+
+	private final AtomicInteger idBlocks = new AtomicInteger();
+	private Connection keepAlive;
+	private EntityManagerFactory emf;
+	private final QueryPlanCache queryPlanCache = new QueryPlanCache();
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		final String url = "jdbc:h2:mem:benchmarks-" + rows + ";DB_CLOSE_DELAY=-1";
+		this.keepAlive = createSchema(url);
+		seed(this.keepAlive, rows);
+		this.emf = createEntityManagerFactory(url);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		this.emf.close();
+		try (Statement statement = this.keepAlive.createStatement()) {
+			statement.execute("SHUTDOWN");
+		}
+		this.keepAlive.close();
+	}
+
+	public EntityManagerFactory getEntityManagerFactory() {
+		return emf;
+	}
+
+	public QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * @return The first identifier of a block of ids, greater than any seeded
+	 *         person id, reserved for the exclusive use of the caller.
+	 */
+	public int reserveIdBlock() {
+		return rows + 1 + idBlocks.getAndIncrement() * ID_BLOCK_SIZE;
+	}
+
+	/**
+	 * Opens a connection to the given database and runs
+	 * <code>create-db.sql</code> on it. The returned connection must be kept
+	 * open while the database is in use.
+	 */
+	public static Connection createSchema(String url) throws SQLException {
+		final Connection connection = DriverManager.getConnection(url);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("RUNSCRIPT FROM 'classpath:create-db.sql'");
+		}
+		return connection;
+	}
+
+	public static EntityManagerFactory createEntityManagerFactory(String url) {
+		Map<String, String> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.url", url);
+		properties.put("hibernate.show_sql", "false");
+		return Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+	}
+
+	private static void seed(Connection connection, int rows) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("INSERT INTO skills (skill_id, skill_name) "
+					+ "SELECT X, 'Skill ' || X FROM SYSTEM_RANGE(1, " + SKILLS + ")");
+			statement.executeUpdate("INSERT INTO persons (person_id, person_name, person_age, skill_id) "
+					+ "SELECT X, 'Person ' || X, MOD(X * 31, " + (MAX_AGE + 1) + "), MOD(X, " + SKILLS + ") + 1 "
+					+ "FROM SYSTEM_RANGE(1, " + rows + ")");
+		}
+	}
+}
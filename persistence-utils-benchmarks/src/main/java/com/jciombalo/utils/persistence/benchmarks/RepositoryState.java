@@ -0,0 +1,39 @@
+package com.jciombalo.utils.persistence.benchmarks;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.jciombalo.utils.persistence.jpa.JpaRepository;
+import com.jciombalo.utils.persistence.test.entity.Person;
+
+/**
+ * Per-thread {@link EntityManager} and {@link JpaRepository JpaRepositories}
+ * over the {@link BenchmarkDataset}, with and without a query plan cache.
+ *
+ * @author jorge.ciombalo
+ */
+@State(Scope.Thread)
+public class RepositoryState {
+
+	EntityManager em;
+	JpaRepository<Person> repository;
+	JpaRepository<Person> cachedPlanRepository;
+
+	@Setup(Level.Trial)
+	public void setUp(BenchmarkDataset dataset) {
+		this.em = dataset.getEntityManagerFactory().createEntityManager();
+		this.repository = new JpaRepository<Person>(em, Person.class);
+		this.cachedPlanRepository = new JpaRepository<Person>(em, Person.class)
+				.withQueryPlanCache(dataset.getQueryPlanCache());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.em.close();
+	}
+}
@@ -0,0 +1,159 @@
+package com.jciombalo.utils.persistence.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jciombalo.utils.persistence.CountPolicy;
+import com.jciombalo.utils.persistence.Search;
+import com.jciombalo.utils.persistence.SearchBuilder;
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SearchResult;
+import com.jciombalo.utils.persistence.SortingCriteria;
+import com.jciombalo.utils.persistence.test.entity.Person;
+
+/**
+ * <p>
+ * End-to-end cost of {@link com.jciombalo.utils.persistence.jpa.JpaRepository#search
+ * JpaRepository.search}: criteria translation, count query and data query.
+ * </p>
+ * <p>
+ * The <code>selective*</code> pair runs the same restrictions with and without
+ * pagination, so the difference between them is the overhead of the count
+ * query, and the <code>*ById</code> pair compares offset and keyset
+ * pagination over the same page (also without counting, as infinite scrolling
+ * would do). The <code>*CachedPlan</code> variants reuse the criteria queries kept
+ * by a {@link com.jciombalo.utils.persistence.jpa.QueryPlanCache QueryPlanCache}.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+	@Param({ "1", "100" })
+	public int page;
+
+	@Param({ "50" })
+	public int pageSize;
+
+	private Search pagedSorted;
+	private Search projection;
+	private Search nestedCriteria;
+	private Search selectivePaged;
+	private Search selectiveUnpaged;
+	private Search offsetById;
+	private Search keysetById;
+	private Search keysetByIdWithoutCount;
+
+	@Setup
+	public void setUp() {
+		this.pagedSorted = SearchBuilder.selectPage(page, pageSize)
+				.sortBy(SortingCriteria.DESC("age"))
+				.sortBy(SortingCriteria.ASC("id"))
+				.build();
+		this.projection = SearchBuilder.selectAttributesFromPage(page, pageSize, "id", "name", "age")
+				.sortBy(SortingCriteria.ASC("id"))
+				.build();
+		this.nestedCriteria = SearchBuilder.selectPage(page, pageSize)
+				.where(SearchCriteria.OR(
+						SearchCriteria.AND(
+								SearchCriteria.EQ("skill.name", "Skill 7"),
+								SearchCriteria.GE("age", 18)),
+						SearchCriteria.AND(
+								SearchCriteria.IN("skill.name", "Skill 3", "Skill 11", "Skill 42"),
+								SearchCriteria.NO(SearchCriteria.EQ("name", "9", false, false)))))
+				.and(SearchCriteria.LT("age", 90))
+				.sortBy(SortingCriteria.ASC("name"))
+				.build();
+		this.selectivePaged = SearchBuilder.selectPage(1, pageSize)
+				.where(SearchCriteria.EQ("age", 42))
+				.and(SearchCriteria.EQ("skill.name", "Skill 3"))
+				.build();
+		this.selectiveUnpaged = SearchBuilder.selectAll()
+				.where(SearchCriteria.EQ("age", 42))
+				.and(SearchCriteria.EQ("skill.name", "Skill 3"))
+				.build();
+		this.offsetById = SearchBuilder.selectPage(page, pageSize)
+				.sortBy(SortingCriteria.ASC("id"))
+				.build();
+		// Seeded ids are contiguous, so the last id of the previous page is known
+		this.keysetById = SearchBuilder.selectAfter(page == 1 ? null : new Object[] { (page - 1) * pageSize }, pageSize)
+				.sortBy(SortingCriteria.ASC("id"))
+				.build();
+		this.keysetByIdWithoutCount = SearchBuilder
+				.selectAfter(page == 1 ? null : new Object[] { (page - 1) * pageSize }, pageSize)
+				.sortBy(SortingCriteria.ASC("id"))
+				.countItems(CountPolicy.WHEN_NEEDED)
+				.build();
+	}
+
+	@Benchmark
+	public SearchResult<Person> pagedSorted(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(pagedSorted);
+	}
+
+	@Benchmark
+	public SearchResult<Person> projection(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(projection);
+	}
+
+	@Benchmark
+	public SearchResult<Person> nestedCriteria(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(nestedCriteria);
+	}
+
+	@Benchmark
+	public SearchResult<Person> nestedCriteriaCachedPlan(RepositoryState state) {
+		state.em.clear();
+		return state.cachedPlanRepository.search(nestedCriteria);
+	}
+
+	@Benchmark
+	public SearchResult<Person> selectivePaged(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(selectivePaged);
+	}
+
+	@Benchmark
+	public SearchResult<Person> selectiveUnpaged(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(selectiveUnpaged);
+	}
+
+	@Benchmark
+	public SearchResult<Person> offsetById(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(offsetById);
+	}
+
+	@Benchmark
+	public SearchResult<Person> keysetById(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(keysetById);
+	}
+
+	@Benchmark
+	public SearchResult<Person> keysetByIdWithoutCount(RepositoryState state) {
+		state.em.clear();
+		return state.repository.search(keysetByIdWithoutCount);
+	}
+}
@@ -0,0 +1,110 @@
+package com.jciombalo.utils.persistence.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jciombalo.utils.persistence.test.entity.Person;
+
+/**
+ * Cost of the single entity write operations of
+ * {@link com.jciombalo.utils.persistence.jpa.JpaRepository JpaRepository}, each
+ * one committed in its own transaction.
+ *
+ * @author jorge.ciombalo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+	/**
+	 * Sequence of fresh person ids, exclusive to the benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class IdSequence {
+		int nextId;
+
+		@Setup(Level.Trial)
+		public void setUp(BenchmarkDataset dataset) {
+			this.nextId = dataset.reserveIdBlock();
+		}
+	}
+
+	/**
+	 * A person inserted right before each invocation, so it can be deleted by
+	 * the benchmark.
+	 */
+	@State(Scope.Thread)
+	public static class DeletablePerson {
+		int id;
+		EntityManager em;
+
+		@Setup(Level.Trial)
+		public void open(BenchmarkDataset dataset) {
+			this.em = dataset.getEntityManagerFactory().createEntityManager();
+		}
+
+		@Setup(Level.Invocation)
+		public void insert(IdSequence ids) {
+			this.id = ids.nextId++;
+			em.getTransaction().begin();
+			em.persist(new Person(id, "Deletable " + id, 0));
+			em.getTransaction().commit();
+			em.clear();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			this.em.close();
+		}
+	}
+
+	@Benchmark
+	public Person create(RepositoryState state, IdSequence ids) {
+		final int id = ids.nextId++;
+		final Person person = new Person(id, "Created " + id, id % BenchmarkDataset.MAX_AGE);
+		state.em.getTransaction().begin();
+		state.repository.create(person);
+		state.em.getTransaction().commit();
+		state.em.clear();
+		return person;
+	}
+
+	@Benchmark
+	public Person update(RepositoryState state, BenchmarkDataset dataset) {
+		final int id = ThreadLocalRandom.current().nextInt(1, dataset.rows + 1);
+		state.em.getTransaction().begin();
+		final Person person = state.repository.retrieve(id);
+		person.setAge(ThreadLocalRandom.current().nextInt(0, BenchmarkDataset.MAX_AGE + 1));
+		final Person updated = state.repository.update(person);
+		state.em.getTransaction().commit();
+		state.em.clear();
+		return updated;
+	}
+
+	@Benchmark
+	public Person delete(RepositoryState state, DeletablePerson deletable) {
+		state.em.getTransaction().begin();
+		final Person deleted = state.repository.delete(deletable.id);
+		state.em.getTransaction().commit();
+		state.em.clear();
+		return deleted;
+	}
+}
@@ -0,0 +1,111 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SortingCriteria;
+import com.jciombalo.utils.persistence.benchmarks.BenchmarkDataset;
+import com.jciombalo.utils.persistence.test.entity.Person;
+
+/**
+ * Cost of translating a {@link SearchCriteria} tree into a JPA criteria query,
+ * without executing it. Lives in the <code>jpa</code> package to reach the
+ * package-private parsers.
+ *
+ * @author jorge.ciombalo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CriteriaTranslationBenchmark {
+
+	private static final SearchCriteria[] FLAT = {
+			SearchCriteria.GE("age", 18),
+			SearchCriteria.EQ("skill.name", "Skill 7") };
+
+	private static final SearchCriteria[] NESTED = {
+			SearchCriteria.OR(
+					SearchCriteria.AND(
+							SearchCriteria.EQ("skill.name", "Skill 7"),
+							SearchCriteria.GE("age", 18)),
+					SearchCriteria.AND(
+							SearchCriteria.IN("skill.name", "Skill 3", "Skill 11", "Skill 42"),
+							SearchCriteria.NO(SearchCriteria.EQ("name", "9", false, false)))),
+			SearchCriteria.LT("age", 90) };
+
+	private static final SortingCriteria[] SORTING = { SortingCriteria.ASC("name"), SortingCriteria.ASC("id") };
+
+	private Connection keepAlive;
+	private EntityManagerFactory emf;
+	private EntityManager em;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		final String url = "jdbc:h2:mem:translation;DB_CLOSE_DELAY=-1";
+		this.keepAlive = BenchmarkDataset.createSchema(url);
+		this.emf = BenchmarkDataset.createEntityManagerFactory(url);
+		this.em = emf.createEntityManager();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		this.em.close();
+		this.emf.close();
+		this.keepAlive.close();
+	}
+
+	@Benchmark
+	public CriteriaQuery<Person> flatCriteria() {
+		return translate(FLAT);
+	}
+
+	@Benchmark
+	public CriteriaQuery<Person> nestedCriteria() {
+		return translate(NESTED);
+	}
+
+	/**
+	 * Translation plus the provider rendering done by
+	 * {@link EntityManager#createQuery(CriteriaQuery)}.
+	 */
+	@Benchmark
+	public TypedQuery<Person> nestedCriteriaQuery() {
+		return em.createQuery(translate(NESTED));
+	}
+
+	private CriteriaQuery<Person> translate(SearchCriteria[] criterias) {
+		final CriteriaBuilder builder = em.getCriteriaBuilder();
+		final CriteriaQuery<Person> query = builder.createQuery(Person.class);
+		final PathResolver paths = new PathResolver(query.from(Person.class));
+		final Predicate[] restrictions = SearchCriteriaParser.parse(criterias, builder, paths,
+				new QueryParameters(builder));
+		query.where(restrictions);
+		query.orderBy(SortingCriteriaParser.parse(SORTING, builder, paths));
+		return query;
+	}
+}
@@ -0,0 +1,35 @@
+package com.jciombalo.utils.persistence;
+
+/**
+ * Functions computing a single value out of the entities of each group of an
+ * {@link Aggregation aggregation}.
+ *
+ * @author jorge.ciombalo
+ */
+public enum AggregateFunction {
+
+	/**
+	 * Number of entities, or of non-null values of an attribute.
+	 */
+	COUNT,
+
+	/**
+	 * Sum of the values of a numeric attribute.
+	 */
+	SUM,
+
+	/**
+	 * Average of the values of a numeric attribute.
+	 */
+	AVG,
+
+	/**
+	 * Lowest value of a comparable attribute.
+	 */
+	MIN,
+
+	/**
+	 * Highest value of a comparable attribute.
+	 */
+	MAX
+}
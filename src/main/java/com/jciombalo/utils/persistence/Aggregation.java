@@ -0,0 +1,121 @@
+package com.jciombalo.utils.persistence;
+
+/**
+ * <p>
+ * Holds the criterias of an aggregation to be computed by a repository: the
+ * entities matching the {@link SearchCriteria filtering criterias} are grouped
+ * by the values of the group-by paths, and each group is reduced to the values
+ * of its {@link Aggregate aggregates}. Groups are then filtered by the having
+ * criterias and sorted by the {@link SortingCriteria sorting criterias}, both
+ * referring to group-by paths or to aggregate aliases.
+ * </p>
+ * <p>
+ * New aggregation instances can only be defined using the
+ * {@link AggregationBuilder} fluent API.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see AggregationBuilder
+ */
+public class Aggregation {
+
+	private final String[] groupByPaths;
+	private final Aggregate[] aggregates;
+	private final SearchCriteria[] searchCriterias;
+	private final SearchCriteria[] havingCriterias;
+	private final SortingCriteria[] sortingCriterias;
+	private final Integer maxResults;
+
+	Aggregation(String[] groupByPaths, Aggregate[] aggregates, SearchCriteria[] searchCriterias,
+			SearchCriteria[] havingCriterias, SortingCriteria[] sortingCriterias, Integer maxResults) {
+		super();
+		this.groupByPaths = groupByPaths;
+		this.aggregates = aggregates;
+		this.searchCriterias = searchCriterias;
+		this.havingCriterias = havingCriterias;
+		this.sortingCriterias = sortingCriterias;
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * @return The attribute paths the entities are grouped by, empty to
+	 *         aggregate all the entities found into a single group.
+	 */
+	public String[] getGroupByPaths() {
+		return groupByPaths;
+	}
+
+	/**
+	 * @return The values computed for each group.
+	 */
+	public Aggregate[] getAggregates() {
+		return aggregates;
+	}
+
+	/**
+	 * @return The filtering criterias of the entities, or <code>null</code> to
+	 *         aggregate all of them.
+	 */
+	public SearchCriteria[] getSearchCriterias() {
+		return searchCriterias;
+	}
+
+	/**
+	 * @return The filtering criterias of the groups, or <code>null</code> to
+	 *         keep all of them.
+	 */
+	public SearchCriteria[] getHavingCriterias() {
+		return havingCriterias;
+	}
+
+	/**
+	 * @return The sorting criterias of the groups, or <code>null</code> if
+	 *         unsorted.
+	 */
+	public SortingCriteria[] getSortingCriterias() {
+		return sortingCriterias;
+	}
+
+	/**
+	 * @return The max number of groups to be retrieved, or <code>null</code>
+	 *         to retrieve all of them.
+	 */
+	public Integer getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * A value computed by an {@link AggregateFunction} for each group of an
+	 * aggregation, named by its alias.
+	 */
+	public static class Aggregate {
+
+		private final AggregateFunction function;
+		private final String attributePath;
+		private final String alias;
+
+		Aggregate(final AggregateFunction function, final String attributePath, final String alias) {
+			super();
+			this.function = function;
+			this.attributePath = attributePath;
+			this.alias = alias;
+		}
+
+		public AggregateFunction getFunction() {
+			return function;
+		}
+
+		/**
+		 * @return The attribute aggregated, or <code>null</code> to count the
+		 *         entities themselves.
+		 */
+		public String getAttributePath() {
+			return attributePath;
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.jciombalo.utils.persistence;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.jciombalo.utils.persistence.Aggregation.Aggregate;
+
+/**
+ * <p>
+ * Fluent API for the creation of new {@link Aggregation aggregation}
+ * criterias, following the style of {@link SearchBuilder}.
+ * </p>
+ * <p>
+ * Usage example:
+ * </p>
+ * <pre>
+ * JpaRepository&lt;Person&gt; repo = ...;
+ * Aggregation averageAgeBySkill = AggregationBuilder.groupBy("skill.name")
+ *         .count("persons")
+ *         .avg("age", "averageAge")
+ *         .where(SearchCriteria.GE("age", 21))
+ *         .having(SearchCriteria.GE("persons", 10))
+ *         .sortBy(SortingCriteria.DESC("averageAge"))
+ *         .build();
+ * List&lt;Map&lt;String, Object&gt;&gt; groups = repo.aggregate(averageAgeBySkill);
+ * </pre>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see Aggregation
+ */
+public class AggregationBuilder {
+
+	private final String[] groupByPaths;
+	private final List<Aggregate> aggregates = new ArrayList<Aggregate>();
+	private final Set<String> names = new HashSet<String>();
+	private List<SearchCriteria> searchCriterias;
+	private List<SearchCriteria> havingCriterias;
+	private List<SortingCriteria> sortingCriterias;
+	private Integer maxResults;
+
+	/**
+	 * Creates a new <code>AggregationBuilder</code> object for an aggregation
+	 * of all the entities matching it into a single group.
+	 * 
+	 * @return the newly created <code>AggregationBuilder</code> object.
+	 */
+	public static AggregationBuilder aggregateAll() {
+		return new AggregationBuilder(new String[0]);
+	}
+
+	/**
+	 * Creates a new <code>AggregationBuilder</code> object for an aggregation
+	 * grouping the entities matching it by the values of the given attributes.
+	 * Each value is reported under its own attribute path.
+	 * 
+	 * @param path
+	 *            Not-null, not empty attribute path.
+	 * @param additionalPaths
+	 *            Other attribute paths.
+	 * @return the newly created <code>AggregationBuilder</code> object.
+	 * @throws IllegalArgumentException
+	 *             If any path is null or empty, or repeated.
+	 */
+	public static AggregationBuilder groupBy(final String path, final String... additionalPaths)
+			throws IllegalArgumentException {
+		final String[] groupByPaths;
+		if (additionalPaths == null) {
+			groupByPaths = new String[] { path };
+		} else {
+			groupByPaths = new String[additionalPaths.length + 1];
+			groupByPaths[0] = path;
+			System.arraycopy(additionalPaths, 0, groupByPaths, 1, additionalPaths.length);
+		}
+		return new AggregationBuilder(groupByPaths);
+	}
+
+	private AggregationBuilder(final String[] groupByPaths) throws IllegalArgumentException {
+		super();
+		for (String path : groupByPaths) {
+			validateName(path);
+		}
+		this.groupByPaths = groupByPaths;
+	}
+
+	/**
+	 * Counts the entities of each group.
+	 * 
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If the alias is null, empty or already used.
+	 */
+	public AggregationBuilder count(final String alias) throws IllegalArgumentException {
+		return aggregate(AggregateFunction.COUNT, null, alias);
+	}
+
+	/**
+	 * Counts the non-null values of an attribute in each group.
+	 * 
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If the path is null, or the alias is null, empty or already
+	 *             used.
+	 */
+	public AggregationBuilder count(final String attributePath, final String alias) throws IllegalArgumentException {
+		return aggregate(AggregateFunction.COUNT, validatePath(attributePath), alias);
+	}
+
+	/**
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If the path is null, or the alias is null, empty or already
+	 *             used.
+	 */
+	public AggregationBuilder sum(final String attributePath, final String alias) throws IllegalArgumentException {
+		return aggregate(AggregateFunction.SUM, validatePath(attributePath), alias);
+	}
+
+	/**
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If the path is null, or the alias is null, empty or already
+	 *             used.
+	 */
+	public AggregationBuilder avg(final String attributePath, final String alias) throws IllegalArgumentException {
+		return aggregate(AggregateFunction.AVG, validatePath(attributePath), alias);
+	}
+
+	/**
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If the path is null, or the alias is null, empty or already
+	 *             used.
+	 */
+	public AggregationBuilder min(final String attributePath, final String alias) throws IllegalArgumentException {
+		return aggregate(AggregateFunction.MIN, validatePath(attributePath), alias);
+	}
+
+	/**
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If the path is null, or the alias is null, empty or already
+	 *             used.
+	 */
+	public AggregationBuilder max(final String attributePath, final String alias) throws IllegalArgumentException {
+		return aggregate(AggregateFunction.MAX, validatePath(attributePath), alias);
+	}
+
+	public AggregationBuilder where(final SearchCriteria searchCriteria) {
+		this.searchCriterias = new ArrayList<SearchCriteria>();
+		this.searchCriterias.add(searchCriteria);
+		return this;
+	}
+
+	public AggregationBuilder and(final SearchCriteria searchCriteria) {
+		this.searchCriterias.add(searchCriteria);
+		return this;
+	}
+
+	/**
+	 * Filters the groups, by criterias referring to group-by paths or to
+	 * aggregate aliases. Several criterias must all be matched.
+	 * 
+	 * @return This builder.
+	 */
+	public AggregationBuilder having(final SearchCriteria havingCriteria) {
+		if (this.havingCriterias == null) {
+			this.havingCriterias = new ArrayList<SearchCriteria>();
+		}
+		this.havingCriterias.add(havingCriteria);
+		return this;
+	}
+
+	/**
+	 * Sorts the groups, by a group-by path or an aggregate alias.
+	 * 
+	 * @return This builder.
+	 */
+	public AggregationBuilder sortBy(final SortingCriteria sortingCriteria) {
+		if (this.sortingCriterias == null) {
+			this.sortingCriterias = new ArrayList<SortingCriteria>();
+		}
+		this.sortingCriterias.add(sortingCriteria);
+		return this;
+	}
+
+	/**
+	 * Retrieves only the first <code>maxResults</code> groups.
+	 * 
+	 * @param maxResults
+	 *            Not-null, positive number of groups.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxResults</code> is null or not positive.
+	 */
+	public AggregationBuilder limit(final Integer maxResults) throws IllegalArgumentException {
+		if (maxResults == null || maxResults <= 0) {
+			throw new IllegalArgumentException("Max results must be a not null, positive number");
+		}
+		this.maxResults = maxResults;
+		return this;
+	}
+
+	/**
+	 * Creates a new {@link Aggregation} instance with all the criterias
+	 * previously defined.
+	 * 
+	 * @return A new {@link Aggregation} instance with the criterias defined.
+	 * @throws IllegalStateException
+	 *             If no aggregate was defined.
+	 */
+	public Aggregation build() throws IllegalStateException {
+		if (aggregates.isEmpty()) {
+			throw new IllegalStateException("Aggregations must define at least one aggregate");
+		}
+		SearchCriteria[] searchCriterias = null;
+		if (this.searchCriterias != null) {
+			searchCriterias = this.searchCriterias.toArray(new SearchCriteria[this.searchCriterias.size()]);
+		}
+		SearchCriteria[] havingCriterias = null;
+		if (this.havingCriterias != null) {
+			havingCriterias = this.havingCriterias.toArray(new SearchCriteria[this.havingCriterias.size()]);
+		}
+		SortingCriteria[] sortingCriterias = null;
+		if (this.sortingCriterias != null) {
+			sortingCriterias = this.sortingCriterias.toArray(new SortingCriteria[this.sortingCriterias.size()]);
+		}
+		return new Aggregation(groupByPaths, aggregates.toArray(new Aggregate[aggregates.size()]), searchCriterias,
+				havingCriterias, sortingCriterias, maxResults);
+	}
+
+	private AggregationBuilder aggregate(final AggregateFunction function, final String attributePath,
+			final String alias) throws IllegalArgumentException {
+		validateName(alias);
+		this.aggregates.add(new Aggregate(function, attributePath, alias));
+		return this;
+	}
+
+	private void validateName(final String name) throws IllegalArgumentException {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Group-by paths and aliases must be not null, not empty values");
+		}
+		if (!names.add(name)) {
+			throw new IllegalArgumentException(name + " is already grouped by or used as an alias");
+		}
+	}
+
+	private static String validatePath(final String attributePath) throws IllegalArgumentException {
+		if (attributePath == null || attributePath.isEmpty()) {
+			throw new IllegalArgumentException("The aggregated attribute path must be a not null, not empty value");
+		}
+		return attributePath;
+	}
+}
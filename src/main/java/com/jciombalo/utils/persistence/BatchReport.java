@@ -0,0 +1,91 @@
+package com.jciombalo.utils.persistence;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a batch write operation on a {@link Repository}, such as
+ * {@link Repository#createAll}, with the timing of each batch written.
+ *
+ * @author jorge.ciombalo
+ */
+public class BatchReport implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Batch> batches = new ArrayList<Batch>();
+
+	/**
+	 * Records a new batch written to the repository.
+	 *
+	 * @param entities
+	 *            The number of entities written by the batch.
+	 * @param elapsedNanos
+	 *            The time taken to write the batch, in nanoseconds.
+	 */
+	public void addBatch(final int entities, final long elapsedNanos) {
+		this.batches.add(new Batch(entities, elapsedNanos));
+	}
+
+	/**
+	 * @return The batches written, in order.
+	 */
+	public List<Batch> getBatches() {
+		return Collections.unmodifiableList(batches);
+	}
+
+	/**
+	 * @return The number of entities written by all the batches.
+	 */
+	public long getEntitiesWritten() {
+		long entities = 0;
+		for (Batch batch : batches) {
+			entities += batch.getEntities();
+		}
+		return entities;
+	}
+
+	/**
+	 * @return The time taken to write all the batches, in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		long elapsedNanos = 0;
+		for (Batch batch : batches) {
+			elapsedNanos += batch.getElapsedNanos();
+		}
+		return elapsedNanos;
+	}
+
+	/**
+	 * A single batch of a {@link BatchReport}.
+	 */
+	public static class Batch implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int entities;
+		private final long elapsedNanos;
+
+		Batch(final int entities, final long elapsedNanos) {
+			super();
+			this.entities = entities;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return The number of entities written by the batch.
+		 */
+		public int getEntities() {
+			return entities;
+		}
+
+		/**
+		 * @return The time taken to write the batch, in nanoseconds.
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.jciombalo.utils.persistence;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>
+ * {@link Repository} decorator serving repeated searches from a
+ * {@link SearchResultCache}, meant for entities rarely changed, like reference
+ * data. Every write performed through the repository invalidates the results
+ * cached for its entity type; all the other operations are delegated without
+ * caching.
+ * </p>
+ * <p>
+ * Cached results are shared by all the callers performing the same search, so
+ * the entities they hold must be treated as read-only.
+ * </p>
+ * <p>
+ * Writes invalidate the cache as soon as they're performed, before their
+ * transaction commits. A search performed concurrently in between still reads
+ * the previous state and caches it, serving it until it expires. Callers
+ * writing within transactions should call {@link #invalidate()} once they're
+ * committed to discard such results.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @param <T>
+ *            The kind of the entity handled by the repository.
+ */
+public class CachingRepository<T> implements Repository<T> {
+
+	private final Repository<T> repository;
+	private final Class<T> entityType;
+	private final SearchResultCache cache;
+
+	/**
+	 * @param repository
+	 *            The repository performing the operations.
+	 * @param entityType
+	 *            The kind of the entity handled by the repository.
+	 * @param cache
+	 *            Cache shared by the caching repositories of the same data
+	 *            repository.
+	 */
+	public CachingRepository(final Repository<T> repository, final Class<T> entityType,
+			final SearchResultCache cache) {
+		super();
+		this.repository = repository;
+		this.entityType = entityType;
+		this.cache = cache;
+	}
+
+	/**
+	 * Discards the results cached for the entity type, e.g. after committing
+	 * the transaction of the writes performed through the repository.
+	 */
+	public void invalidate() {
+		cache.invalidate(entityType);
+	}
+
+	@Override
+	public void create(T entity) {
+		repository.create(entity);
+		cache.invalidate(entityType);
+	}
+
+	@Override
+	public T retrieve(Serializable id) {
+		return repository.retrieve(id);
+	}
+
+	@Override
+	public Map<Serializable, T> retrieveAll(Collection<? extends Serializable> ids) {
+		return repository.retrieveAll(ids);
+	}
+
+	@Override
+	public T update(T entity) {
+		final T updated = repository.update(entity);
+		cache.invalidate(entityType);
+		return updated;
+	}
+
+	@Override
+	public T delete(Serializable id) {
+		final T deleted = repository.delete(id);
+		cache.invalidate(entityType);
+		return deleted;
+	}
+
+	@Override
+	public boolean deleteById(Serializable id) {
+		final boolean deleted = repository.deleteById(id);
+		cache.invalidate(entityType);
+		return deleted;
+	}
+
+	@Override
+	public int deleteByIds(Collection<? extends Serializable> ids) {
+		final int deleted = repository.deleteByIds(ids);
+		cache.invalidate(entityType);
+		return deleted;
+	}
+
+	@Override
+	public void delete(T entity) {
+		repository.delete(entity);
+		cache.invalidate(entityType);
+	}
+
+	@Override
+	public BatchReport createAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		final BatchReport report = repository.createAll(entities, batchSize);
+		cache.invalidate(entityType);
+		return report;
+	}
+
+	@Override
+	public BatchReport updateAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		final BatchReport report = repository.updateAll(entities, batchSize);
+		cache.invalidate(entityType);
+		return report;
+	}
+
+	@Override
+	public BatchReport deleteAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		final BatchReport report = repository.deleteAll(entities, batchSize);
+		cache.invalidate(entityType);
+		return report;
+	}
+
+	@Override
+	public int deleteWhere(SearchCriteria... searchCriterias) throws IllegalArgumentException {
+		final int deleted = repository.deleteWhere(searchCriterias);
+		cache.invalidate(entityType);
+		return deleted;
+	}
+
+	@Override
+	public int updateWhere(SearchCriteria[] searchCriterias, Map<String, Object> assignments)
+			throws IllegalArgumentException {
+		final int updated = repository.updateWhere(searchCriterias, assignments);
+		cache.invalidate(entityType);
+		return updated;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The result is served from the cache when the same search was performed
+	 * before, and neither expired nor was invalidated since then.
+	 * </p>
+	 */
+	@Override
+	public SearchResult<T> search(Search searchDetails) {
+		SearchResult<T> result = cache.get(entityType, searchDetails);
+		if (result == null) {
+			final long generation = cache.generation(entityType);
+			result = repository.search(searchDetails);
+			cache.put(entityType, searchDetails, result, generation);
+		}
+		return result;
+	}
+
+	@Override
+	public Iterator<T> searchIterator(Search searchDetails, int fetchSize) throws IllegalArgumentException {
+		return repository.searchIterator(searchDetails, fetchSize);
+	}
+}
@@ -0,0 +1,140 @@
+package com.jciombalo.utils.persistence;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>
+ * {@link Repository} decorator sharing the result of concurrent equal searches
+ * through a {@link SearchCoalescer}, so a burst of callers performing the same
+ * search hits the data repository only once. All the other operations are
+ * delegated as they are.
+ * </p>
+ * <p>
+ * Results are shared by all the callers waiting for the same search, and the
+ * entities they hold are managed, if at all, by the repository that performed
+ * it, so they must be treated as read-only.
+ * </p>
+ * <p>
+ * A coalesced result is read by the caller that performed the search, within
+ * its own transaction and persistence context. Callers awaiting it don't see
+ * their own uncommitted writes in it, and get entities managed by the
+ * persistence context of another thread, which must neither be changed nor
+ * lazily loaded by them. Searches performed within transactions that already
+ * wrote, or whose entities are to be changed, should go through the data
+ * repository instead.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @param <T>
+ *            The kind of the entity handled by the repository.
+ */
+public class CoalescingRepository<T> implements Repository<T> {
+
+	private final Repository<T> repository;
+	private final Class<T> entityType;
+	private final SearchCoalescer coalescer;
+
+	/**
+	 * @param repository
+	 *            The repository performing the operations.
+	 * @param entityType
+	 *            The kind of the entity handled by the repository.
+	 * @param coalescer
+	 *            Coalescer shared by the coalescing repositories of the same
+	 *            data repository.
+	 */
+	public CoalescingRepository(final Repository<T> repository, final Class<T> entityType,
+			final SearchCoalescer coalescer) {
+		super();
+		this.repository = repository;
+		this.entityType = entityType;
+		this.coalescer = coalescer;
+	}
+
+	@Override
+	public void create(T entity) {
+		repository.create(entity);
+	}
+
+	@Override
+	public T retrieve(Serializable id) {
+		return repository.retrieve(id);
+	}
+
+	@Override
+	public Map<Serializable, T> retrieveAll(Collection<? extends Serializable> ids) {
+		return repository.retrieveAll(ids);
+	}
+
+	@Override
+	public T update(T entity) {
+		return repository.update(entity);
+	}
+
+	@Override
+	public T delete(Serializable id) {
+		return repository.delete(id);
+	}
+
+	@Override
+	public boolean deleteById(Serializable id) {
+		return repository.deleteById(id);
+	}
+
+	@Override
+	public int deleteByIds(Collection<? extends Serializable> ids) {
+		return repository.deleteByIds(ids);
+	}
+
+	@Override
+	public void delete(T entity) {
+		repository.delete(entity);
+	}
+
+	@Override
+	public BatchReport createAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		return repository.createAll(entities, batchSize);
+	}
+
+	@Override
+	public BatchReport updateAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		return repository.updateAll(entities, batchSize);
+	}
+
+	@Override
+	public BatchReport deleteAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		return repository.deleteAll(entities, batchSize);
+	}
+
+	@Override
+	public int deleteWhere(SearchCriteria... searchCriterias) throws IllegalArgumentException {
+		return repository.deleteWhere(searchCriterias);
+	}
+
+	@Override
+	public int updateWhere(SearchCriteria[] searchCriterias, Map<String, Object> assignments)
+			throws IllegalArgumentException {
+		return repository.updateWhere(searchCriterias, assignments);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * When an equal search is already in flight, its result is awaited
+	 * instead of performing the search again.
+	 * </p>
+	 */
+	@Override
+	public SearchResult<T> search(Search searchDetails) {
+		return coalescer.search(entityType, searchDetails, repository);
+	}
+
+	@Override
+	public Iterator<T> searchIterator(Search searchDetails, int fetchSize) throws IllegalArgumentException {
+		return repository.searchIterator(searchDetails, fetchSize);
+	}
+}
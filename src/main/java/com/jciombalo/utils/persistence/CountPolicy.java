@@ -0,0 +1,43 @@
+package com.jciombalo.utils.persistence;
+
+/**
+ * <p>
+ * How a paginated {@link Search search} finds out the total number of entities
+ * matching its criterias, reported by {@link SearchResult#getItemsFound()}.
+ * </p>
+ * <p>
+ * Except for {@link #EXACT}, the policies look one entity ahead of the page, so
+ * {@link SearchResult#hasNextPage()} is accurate without counting.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see SearchBuilder#countItems(CountPolicy)
+ */
+public enum CountPolicy {
+
+	/**
+	 * Counts all the entities matching the search with an additional query.
+	 * This is the default policy.
+	 */
+	EXACT,
+
+	/**
+	 * Never counts, the number of items found is always
+	 * {@link SearchResult#UNKNOWN_ITEMS_COUNT unknown}.
+	 */
+	NONE,
+
+	/**
+	 * Infers the exact number of items when the page comes back short,
+	 * otherwise asks the repository for an estimate. Repositories unable to
+	 * estimate count the entities exactly.
+	 */
+	ESTIMATE,
+
+	/**
+	 * Infers the exact number of items when the page comes back short,
+	 * otherwise leaves it {@link SearchResult#UNKNOWN_ITEMS_COUNT unknown}.
+	 */
+	WHEN_NEEDED
+}
@@ -0,0 +1,40 @@
+package com.jciombalo.utils.persistence;
+
+/**
+ * <p>
+ * How a paginated {@link Search search} limits the entities retrieved to
+ * those of its page.
+ * </p>
+ * <p>
+ * Pages located by identifier first take two queries: the first one selects
+ * only the sorted identifiers of the page, and the second one loads the
+ * entities identified, reordered to match. Both are cheaper than limiting a
+ * single query whose rows are repeated by fetched collections, or made wide
+ * by many columns and fetched associations.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see SearchBuilder#pageBy(PagingStrategy)
+ */
+public enum PagingStrategy {
+
+	/**
+	 * Locates the entities by identifier first when the search fetches
+	 * associations, otherwise limits the rows of a single query. This is the
+	 * default strategy.
+	 */
+	AUTO,
+
+	/**
+	 * Limits the rows of a single query, unless the search fetches
+	 * collections, whose pages are always located by identifier first.
+	 */
+	OFFSET,
+
+	/**
+	 * Always locates the entities by identifier first, which requires a single
+	 * identifier attribute.
+	 */
+	ID_FIRST
+}
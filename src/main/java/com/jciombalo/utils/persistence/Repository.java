@@ -1,6 +1,9 @@
 package com.jciombalo.utils.persistence;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Helper interface that encapsulates CRUD operations for a given entity
@@ -32,6 +35,18 @@ public interface Repository<T> {
 	 */
 	T retrieve(Serializable id);
 
+	/**
+	 * Retrieves the objects of type T identified by <code>ids</code> from the
+	 * repository.
+	 * 
+	 * @param ids
+	 *            The identifiers of the entities to be retrieved.
+	 * @return The entities related to the given identifiers, by identifier, in
+	 *         the order of <code>ids</code>. Identifiers without an entity
+	 *         related are left out.
+	 */
+	Map<Serializable, T> retrieveAll(Collection<? extends Serializable> ids);
+
 	/**
 	 * Updates an existing entity of type T in the repository.
 	 * 
@@ -52,6 +67,41 @@ public interface Repository<T> {
 	 */
 	T delete(Serializable id);
 
+	/**
+	 * Removes an entity of type T, identified by <code>id</code>, from the
+	 * repository without loading it first. Pending changes are written
+	 * beforehand, and the removed entity is released by the repository, so a
+	 * previously loaded instance of it should be considered detached
+	 * afterwards. Other loaded entities are kept.
+	 * <p>
+	 * As the entity is removed by a bulk statement, its lifecycle isn't
+	 * followed: removals aren't cascaded to its associations, orphans aren't
+	 * removed, its version isn't checked and no lifecycle callback is
+	 * invoked. Use {@link #delete(Serializable)} when any of these is needed.
+	 * </p>
+	 * 
+	 * @param id
+	 *            The identifier of the entity to be removed from the
+	 *            repository.
+	 * @return <code>true</code> if the entity was removed, or
+	 *         <code>false</code> if there's no entity related to the
+	 *         identifier.
+	 */
+	boolean deleteById(Serializable id);
+
+	/**
+	 * Removes the entities of type T identified by <code>ids</code> from the
+	 * repository without loading them, as described on
+	 * {@link #deleteById(Serializable)}.
+	 * 
+	 * @param ids
+	 *            The identifiers of the entities to be removed from the
+	 *            repository.
+	 * @return The number of entities removed, lower than the number of
+	 *         identifiers if some of them have no entity related.
+	 */
+	int deleteByIds(Collection<? extends Serializable> ids);
+
 	/**
 	 * Removes an entity of type T from the repository.
 	 * 
@@ -60,6 +110,88 @@ public interface Repository<T> {
 	 */
 	void delete(T entity);
 
+	/**
+	 * Inserts several new entities of type T in the repository, writing them
+	 * in batches of up to <code>batchSize</code> entities. After each batch,
+	 * the pending changes are written and all the entities previously loaded
+	 * by the repository are released, so the given entities and any other
+	 * entity loaded before the call should be considered detached afterwards.
+	 * 
+	 * @param entities
+	 *            The new entities to be persisted.
+	 * @param batchSize
+	 *            Positive number of entities written per batch.
+	 * @return The timing of each batch written.
+	 * @throws IllegalArgumentException
+	 *             If <code>batchSize</code> is not positive.
+	 */
+	BatchReport createAll(Collection<T> entities, int batchSize) throws IllegalArgumentException;
+
+	/**
+	 * Updates several existing entities of type T in the repository, writing
+	 * them in batches of up to <code>batchSize</code> entities, as described
+	 * on {@link #createAll(Collection, int)}.
+	 * 
+	 * @param entities
+	 *            The changed entities to be persisted.
+	 * @param batchSize
+	 *            Positive number of entities written per batch.
+	 * @return The timing of each batch written.
+	 * @throws IllegalArgumentException
+	 *             If <code>batchSize</code> is not positive.
+	 */
+	BatchReport updateAll(Collection<T> entities, int batchSize) throws IllegalArgumentException;
+
+	/**
+	 * Removes several entities of type T from the repository, writing the
+	 * removals in batches of up to <code>batchSize</code> entities, as
+	 * described on {@link #createAll(Collection, int)}.
+	 * 
+	 * @param entities
+	 *            The entities to be removed.
+	 * @param batchSize
+	 *            Positive number of entities removed per batch.
+	 * @return The timing of each batch written.
+	 * @throws IllegalArgumentException
+	 *             If <code>batchSize</code> is not positive.
+	 */
+	BatchReport deleteAll(Collection<T> entities, int batchSize) throws IllegalArgumentException;
+
+	/**
+	 * Removes all the entities of type T matching the given criterias from the
+	 * repository, without loading them, with the bulk semantics described on
+	 * {@link #deleteById(Serializable)}. The entities matching the criterias
+	 * are found before being removed, so the removal isn't atomic with the
+	 * search: depending on the transaction isolation, concurrent changes
+	 * made in between may be missed or overridden.
+	 * 
+	 * @param searchCriterias
+	 *            The criterias the entities to be removed must match.
+	 * @return The number of entities removed.
+	 * @throws IllegalArgumentException
+	 *             If no criteria is given.
+	 */
+	int deleteWhere(SearchCriteria... searchCriterias) throws IllegalArgumentException;
+
+	/**
+	 * Changes the attributes of all the entities of type T matching the given
+	 * criterias, without loading them, as described on
+	 * {@link #deleteWhere(SearchCriteria...)}. Previously loaded instances of
+	 * the changed entities are released by the repository and should be
+	 * considered detached afterwards; other loaded entities are kept. No
+	 * version is checked or incremented.
+	 * 
+	 * @param searchCriterias
+	 *            The criterias the entities to be changed must match.
+	 * @param assignments
+	 *            The new values of the changed attributes, by attribute name.
+	 * @return The number of entities changed.
+	 * @throws IllegalArgumentException
+	 *             If no criteria or no assignment is given, or if an
+	 *             attribute doesn't exist.
+	 */
+	int updateWhere(SearchCriteria[] searchCriterias, Map<String, Object> assignments) throws IllegalArgumentException;
+
 	/**
 	 * Performs a search in the repository applying the criterias defined by the
 	 * given {@link Search search details}. To define these details, the
@@ -74,4 +206,24 @@ public interface Repository<T> {
 	 * @see SearchResult
 	 */
 	SearchResult<T> search(Search searchDetails);
+
+	/**
+	 * Performs a search in the repository like {@link #search(Search)}, but
+	 * instead of loading all the entities found at once, fetches them in chunks
+	 * while iterating, keeping the memory used bounded by the size of a chunk.
+	 * Any pagination details of the search are ignored, the iterator goes over
+	 * all the entities found. Total counts aren't computed.
+	 * 
+	 * @param searchDetails
+	 *            The constraints to be used while searching.
+	 * @param fetchSize
+	 *            Positive number of entities fetched from the repository at
+	 *            once.
+	 * @return An iterator over the entities found.
+	 * @throws IllegalArgumentException
+	 *             If <code>fetchSize</code> is not positive.
+	 * @see Search
+	 * @see SearchBuilder
+	 */
+	Iterator<T> searchIterator(Search searchDetails, int fetchSize) throws IllegalArgumentException;
 }
@@ -1,5 +1,7 @@
 package com.jciombalo.utils.persistence;
 
+import java.util.Arrays;
+
 /**
  * <p>
  * Holds the criterias of a search to be performed on a {@link Repository#search
@@ -29,15 +31,31 @@ public class Search {
 	private final SortingCriteria[] sortingCriterias;
 	private final Integer maxResults;
 	private final Integer pageNumber;
+	private final Object[] afterSortKeyValues;
+	private final CountPolicy countPolicy;
+	private final PagingStrategy pagingStrategy;
+	private final String[] fetchPaths;
+	private final String[] facetPaths;
+	private final Integer facetLimit;
+	private final SearchOptions options;
 
 	Search(String[] attributes, SearchCriteria[] searchCriterias, SortingCriteria[] sortingCriterias,
-			Integer maxResults, Integer pageNumber) {
+			Integer maxResults, Integer pageNumber, Object[] afterSortKeyValues, CountPolicy countPolicy,
+			PagingStrategy pagingStrategy, String[] fetchPaths, String[] facetPaths, Integer facetLimit,
+			SearchOptions options) {
 		super();
 		this.attributes = attributes;
 		this.searchCriterias = searchCriterias;
 		this.sortingCriterias = sortingCriterias;
 		this.maxResults = maxResults;
 		this.pageNumber = pageNumber;
+		this.afterSortKeyValues = afterSortKeyValues;
+		this.countPolicy = countPolicy;
+		this.pagingStrategy = pagingStrategy;
+		this.fetchPaths = fetchPaths;
+		this.facetPaths = facetPaths;
+		this.facetLimit = facetLimit;
+		this.options = options;
 	}
 
 	/**
@@ -75,4 +93,134 @@ public class Search {
 		return pageNumber;
 	}
 
+	/**
+	 * @return The values of the sorting attributes of the last entity
+	 *         previously retrieved, after which the page should start. Empty for
+	 *         the first page of a keyset paginated search, or <code>null</code>
+	 *         if the search isn't keyset paginated.
+	 * @see SearchBuilder#selectAfter(Object[], Integer)
+	 */
+	public Object[] getAfterSortKeyValues() {
+		return afterSortKeyValues;
+	}
+
+	/**
+	 * @return Whether the page is located by the values of the sorting
+	 *         attributes, instead of by its page number.
+	 */
+	public boolean isKeysetPaginated() {
+		return afterSortKeyValues != null;
+	}
+
+	/**
+	 * @return How the entities matching a paginated search should be counted.
+	 */
+	public CountPolicy getCountPolicy() {
+		return countPolicy;
+	}
+
+	/**
+	 * @return How a paginated search should limit the entities retrieved to
+	 *         those of its page.
+	 */
+	public PagingStrategy getPagingStrategy() {
+		return pagingStrategy;
+	}
+
+	/**
+	 * @return The paths of the associations loaded along with the entities
+	 *         found, or <code>null</code> if none.
+	 * @see SearchBuilder#fetch(String, String...)
+	 */
+	public String[] getFetchPaths() {
+		return fetchPaths;
+	}
+
+	/**
+	 * @return The paths whose values are counted among all the entities
+	 *         matching the search, or <code>null</code> if none.
+	 * @see SearchBuilder#facets(String, String...)
+	 */
+	public String[] getFacetPaths() {
+		return facetPaths;
+	}
+
+	/**
+	 * @return The max number of values counted per facet, the most frequent
+	 *         ones, or <code>null</code> to count all of them.
+	 * @see SearchBuilder#facetLimit(int)
+	 */
+	public Integer getFacetLimit() {
+		return facetLimit;
+	}
+
+	/**
+	 * @return How the search should be executed by the repository.
+	 */
+	public SearchOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * @param attributes
+	 *            The attributes selected by the new search, or
+	 *            <code>null</code> to select entire entities.
+	 * @return A copy of this search, selecting the given attributes instead.
+	 */
+	public Search withAttributes(final String[] attributes) {
+		return new Search(attributes, searchCriterias, sortingCriterias, maxResults, pageNumber, afterSortKeyValues,
+				countPolicy, pagingStrategy, fetchPaths, facetPaths, facetLimit, options);
+	}
+
+	/**
+	 * @param searchCriterias
+	 *            The filtering criterias of the new search.
+	 * @return A copy of this search, filtering by the given criterias instead.
+	 */
+	public Search withSearchCriterias(final SearchCriteria[] searchCriterias) {
+		return new Search(attributes, searchCriterias, sortingCriterias, maxResults, pageNumber, afterSortKeyValues,
+				countPolicy, pagingStrategy, fetchPaths, facetPaths, facetLimit, options);
+	}
+
+	/**
+	 * Searches are equal when all their criterias, pagination details,
+	 * attributes, fetched associations, facets and options are equal, so they
+	 * retrieve the same result from the same repository state.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Search)) {
+			return false;
+		}
+		Search other = (Search) obj;
+		return Arrays.equals(attributes, other.attributes) && Arrays.equals(searchCriterias, other.searchCriterias)
+				&& Arrays.equals(sortingCriterias, other.sortingCriterias)
+				&& (maxResults == null ? other.maxResults == null : maxResults.equals(other.maxResults))
+				&& (pageNumber == null ? other.pageNumber == null : pageNumber.equals(other.pageNumber))
+				&& Arrays.deepEquals(afterSortKeyValues, other.afterSortKeyValues) && countPolicy == other.countPolicy
+				&& pagingStrategy == other.pagingStrategy
+				&& Arrays.equals(fetchPaths, other.fetchPaths) && Arrays.equals(facetPaths, other.facetPaths)
+				&& (facetLimit == null ? other.facetLimit == null : facetLimit.equals(other.facetLimit))
+				&& options.equals(other.options);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = Arrays.hashCode(attributes);
+		hash = 31 * hash + Arrays.hashCode(searchCriterias);
+		hash = 31 * hash + Arrays.hashCode(sortingCriterias);
+		hash = 31 * hash + (maxResults == null ? 0 : maxResults.hashCode());
+		hash = 31 * hash + (pageNumber == null ? 0 : pageNumber.hashCode());
+		hash = 31 * hash + Arrays.deepHashCode(afterSortKeyValues);
+		hash = 31 * hash + (countPolicy == null ? 0 : countPolicy.hashCode());
+		hash = 31 * hash + (pagingStrategy == null ? 0 : pagingStrategy.hashCode());
+		hash = 31 * hash + Arrays.hashCode(fetchPaths);
+		hash = 31 * hash + Arrays.hashCode(facetPaths);
+		hash = 31 * hash + (facetLimit == null ? 0 : facetLimit.hashCode());
+		return 31 * hash + options.hashCode();
+	}
+
 }
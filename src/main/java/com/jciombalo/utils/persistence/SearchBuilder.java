@@ -1,7 +1,11 @@
 package com.jciombalo.utils.persistence;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -45,6 +49,17 @@ public class SearchBuilder {
 	private List<SortingCriteria> sortingCriterias;
 	private Integer maxResults;
 	private Integer pageNumber;
+	private Object[] afterSortKeyValues;
+	private CountPolicy countPolicy = CountPolicy.EXACT;
+	private PagingStrategy pagingStrategy = PagingStrategy.AUTO;
+	private List<String> fetchPaths;
+	private List<String> facetPaths;
+	private Integer facetLimit;
+	private boolean readOnly;
+	private Integer fetchSize;
+	private Boolean autoFlush;
+	private Integer timeoutMillis;
+	private final Map<String, Object> hints = new LinkedHashMap<String, Object>();
 
 	/**
 	 * Creates a new <code>SearchBuilder</code> object for a search that should
@@ -188,6 +203,52 @@ public class SearchBuilder {
 		return builder;
 	}
 
+	/**
+	 * <p>
+	 * Creates a new <code>SearchBuilder</code> object for a keyset paginated
+	 * search, that should retrieve all the attributes from up to
+	 * <code>maxPageSize</code> entities placed, according to the sorting
+	 * criterias, right after the entity whose sorting attributes have the
+	 * values <code>lastSortKeyValues</code>.
+	 * </p>
+	 * <p>
+	 * Instead of skipping the entities of the previous pages, the page is
+	 * located by filtering on the sorting attributes, so the cost of retrieving
+	 * any page is the same of retrieving the first one. The values to start the
+	 * next page are returned by {@link SearchResult#getContinuationKey()}.
+	 * </p>
+	 * <p>
+	 * At least one {@link #sortBy sorting criteria} must be defined, and the
+	 * sorting attributes must identify each entity uniquely (e.g. ending with
+	 * the entity identifier), be not null, and be part of the entity itself.
+	 * Entities with a null sorting attribute are never matched by the seek
+	 * criteria, and a page ending with one has a continuation key that can't
+	 * be given back to this method, so nullable attributes must not be used.
+	 * The page number of a keyset paginated search is always 1.
+	 * </p>
+	 * 
+	 * @param lastSortKeyValues
+	 *            Values of the sorting attributes of the last entity previously
+	 *            retrieved, in the order the sorting criterias are defined, or
+	 *            <code>null</code> to retrieve the first page.
+	 * @param maxPageSize
+	 *            Not-null, positive number of the max per page that should be
+	 *            retrieved.
+	 * @return The newly created <code>SearchBuilder</code> object.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxPageSize</code> is null or not positive.
+	 */
+	public static SearchBuilder selectAfter(final Object[] lastSortKeyValues, final Integer maxPageSize)
+			throws IllegalArgumentException {
+		validatePositiveNumber(maxPageSize, "Max page size");
+
+		SearchBuilder builder = new SearchBuilder();
+		builder.pageNumber = 1;
+		builder.maxResults = maxPageSize;
+		builder.afterSortKeyValues = lastSortKeyValues == null ? new Object[0] : lastSortKeyValues.clone();
+		return builder;
+	}
+
 	private static void validatePositiveNumber(Integer number, String numberLabel) throws IllegalArgumentException {
 		if (number == null || number.compareTo(0) <= 0) {
 			throw new IllegalArgumentException(numberLabel + " must be a not null positive number");
@@ -234,14 +295,220 @@ public class SearchBuilder {
 		return this;
 	}
 
+	/**
+	 * Defines how the entities matching a paginated search should be counted.
+	 * Searches without pagination always report the number of entities
+	 * retrieved.
+	 * 
+	 * @param countPolicy
+	 *            Not-null count policy, {@link CountPolicy#EXACT} by default.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>countPolicy</code> is null.
+	 */
+	public SearchBuilder countItems(CountPolicy countPolicy) throws IllegalArgumentException {
+		if (countPolicy == null) {
+			throw new IllegalArgumentException("Count policy must be a not null value");
+		}
+		this.countPolicy = countPolicy;
+		return this;
+	}
+
+	/**
+	 * Defines how a paginated search should limit the entities retrieved to
+	 * those of its page.
+	 * 
+	 * @param pagingStrategy
+	 *            Not-null paging strategy, {@link PagingStrategy#AUTO} by
+	 *            default.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>pagingStrategy</code> is null.
+	 */
+	public SearchBuilder pageBy(PagingStrategy pagingStrategy) throws IllegalArgumentException {
+		if (pagingStrategy == null) {
+			throw new IllegalArgumentException("Paging strategy must be a not null value");
+		}
+		this.pagingStrategy = pagingStrategy;
+		return this;
+	}
+
+	/**
+	 * Loads the associations along the given paths (e.g.
+	 * <code>skill</code>) with the entities found, instead of loading them
+	 * later, once per entity. Associations are only loaded for the entities
+	 * retrieved, searches selecting attributes ignore them, and they never
+	 * affect the number of entities found.
+	 * 
+	 * @param path
+	 *            Not-null, not empty path of an association.
+	 * @param additionalPaths
+	 *            Paths of other associations.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>path</code> is null or empty.
+	 */
+	public SearchBuilder fetch(String path, String... additionalPaths) throws IllegalArgumentException {
+		if (path == null || path.isEmpty()) {
+			throw new IllegalArgumentException("The fetched path must be a not null, not empty association path");
+		}
+		if (this.fetchPaths == null) {
+			this.fetchPaths = new ArrayList<String>();
+		}
+		this.fetchPaths.add(path);
+		if (additionalPaths != null) {
+			this.fetchPaths.addAll(Arrays.asList(additionalPaths));
+		}
+		return this;
+	}
+
+	/**
+	 * Counts the entities matching the search per value of each of the given
+	 * paths (e.g. <code>skill.name</code>), reported by
+	 * {@link SearchResult#getFacets()}. Facets are counted among all the
+	 * entities matching the filtering criterias, regardless of the page
+	 * retrieved.
+	 * 
+	 * @param path
+	 *            Not-null, not empty path of an attribute.
+	 * @param additionalPaths
+	 *            Paths of other attributes.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>path</code> is null or empty.
+	 */
+	public SearchBuilder facets(String path, String... additionalPaths) throws IllegalArgumentException {
+		if (path == null || path.isEmpty()) {
+			throw new IllegalArgumentException("The facet path must be a not null, not empty attribute path");
+		}
+		if (this.facetPaths == null) {
+			this.facetPaths = new ArrayList<String>();
+		}
+		this.facetPaths.add(path);
+		if (additionalPaths != null) {
+			this.facetPaths.addAll(Arrays.asList(additionalPaths));
+		}
+		return this;
+	}
+
+	/**
+	 * Limits the values counted per facet to the most frequent ones. All the
+	 * values are counted by default.
+	 * 
+	 * @param maxValues
+	 *            Positive number of values.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxValues</code> is not positive.
+	 * @see #facets(String, String...)
+	 */
+	public SearchBuilder facetLimit(int maxValues) throws IllegalArgumentException {
+		if (maxValues <= 0) {
+			throw new IllegalArgumentException("Facet limit must be a positive number");
+		}
+		this.facetLimit = maxValues;
+		return this;
+	}
+
+	/**
+	 * Makes the entities found read-only, so the repository doesn't keep
+	 * snapshots of them to detect changes, nor checks them when flushing.
+	 * Changes made to read-only entities are never written.
+	 * 
+	 * @return This builder.
+	 */
+	public SearchBuilder readOnly() {
+		this.readOnly = true;
+		return this;
+	}
+
+	/**
+	 * Defines how many rows are fetched from the database at a time while
+	 * reading the results of the search.
+	 * 
+	 * @param fetchSize
+	 *            Positive number of rows.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>fetchSize</code> is not positive.
+	 */
+	public SearchBuilder fetchSize(int fetchSize) throws IllegalArgumentException {
+		if (fetchSize <= 0) {
+			throw new IllegalArgumentException("Fetch size must be a positive number");
+		}
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	/**
+	 * Defines whether changes pending in the current unit of work are written
+	 * before searching, so the search sees them. Searches not flushing save
+	 * checking every managed entity for changes, but only see the changes
+	 * already written.
+	 * 
+	 * @param autoFlush
+	 *            Whether to flush before searching, as the repository does
+	 *            by default.
+	 * @return This builder.
+	 */
+	public SearchBuilder autoFlush(boolean autoFlush) {
+		this.autoFlush = autoFlush;
+		return this;
+	}
+
+	/**
+	 * Limits the time each query of the search may take.
+	 * 
+	 * @param timeout
+	 *            Positive time limit.
+	 * @param unit
+	 *            The unit of <code>timeout</code>.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>timeout</code> is not positive.
+	 */
+	public SearchBuilder timeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Timeout must be a positive number");
+		}
+		this.timeoutMillis = (int) Math.min(Math.max(unit.toMillis(timeout), 1), Integer.MAX_VALUE);
+		return this;
+	}
+
+	/**
+	 * Passes a hint to the repository, such as a provider specific query hint
+	 * of a JPA repository, applied after the other options of the search.
+	 * 
+	 * @param name
+	 *            Not-null name of the hint.
+	 * @param value
+	 *            The value of the hint.
+	 * @return This builder.
+	 * @throws IllegalArgumentException
+	 *             If <code>name</code> is null.
+	 */
+	public SearchBuilder hint(String name, Object value) throws IllegalArgumentException {
+		if (name == null) {
+			throw new IllegalArgumentException("Hint name must be a not null value");
+		}
+		this.hints.put(name, value);
+		return this;
+	}
+
 	/**
 	 * Creates a new {@link Search} instance with all the criterias previously
 	 * defined. The newly created instance is ready to be submitted to the
 	 * {@link Repository#search} method of a {@link Repository}.
 	 * 
 	 * @return A new {@link Search} instance with the criterias defined.
+	 * @throws IllegalStateException
+	 *             If the search is keyset paginated, and the sorting criterias
+	 *             don't match the last sort key values given.
 	 */
-	public Search build() {
+	public Search build() throws IllegalStateException {
+		if (afterSortKeyValues != null) {
+			validateSortKey();
+		}
 		SearchCriteria[] searchCriterias = null;
 		if (this.searchCriterias != null) {
 			searchCriterias = this.searchCriterias.toArray(new SearchCriteria[this.searchCriterias.size()]);
@@ -250,7 +517,32 @@ public class SearchBuilder {
 		if (this.sortingCriterias != null) {
 			sortingCriterias = this.sortingCriterias.toArray(new SortingCriteria[this.sortingCriterias.size()]);
 		}
-		return new Search(attributes, searchCriterias, sortingCriterias, maxResults, pageNumber);
+		String[] fetchPaths = null;
+		if (this.fetchPaths != null) {
+			fetchPaths = this.fetchPaths.toArray(new String[this.fetchPaths.size()]);
+		}
+		String[] facetPaths = null;
+		if (this.facetPaths != null) {
+			facetPaths = this.facetPaths.toArray(new String[this.facetPaths.size()]);
+		}
+		return new Search(attributes, searchCriterias, sortingCriterias, maxResults, pageNumber, afterSortKeyValues,
+				countPolicy, pagingStrategy, fetchPaths, facetPaths, facetLimit,
+				new SearchOptions(readOnly, fetchSize, autoFlush, timeoutMillis, hints));
+	}
+
+	private void validateSortKey() throws IllegalStateException {
+		if (sortingCriterias == null) {
+			throw new IllegalStateException("Keyset paginated searches must define at least one sorting criteria");
+		}
+		if (afterSortKeyValues.length > 0 && afterSortKeyValues.length != sortingCriterias.size()) {
+			throw new IllegalStateException("Expected " + sortingCriterias.size() + " sort key values, but "
+					+ afterSortKeyValues.length + " were given");
+		}
+		for (Object value : afterSortKeyValues) {
+			if (value == null) {
+				throw new IllegalStateException("Sort key values must be not null");
+			}
+		}
 	}
 
 }
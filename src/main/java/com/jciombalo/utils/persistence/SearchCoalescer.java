@@ -0,0 +1,134 @@
+package com.jciombalo.utils.persistence;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Tracks the searches in flight on {@link CoalescingRepository coalescing
+ * repositories}, so concurrent callers performing an
+ * {@link Search#equals(Object) equal} search on the same entity type share a
+ * single execution and its result, instead of all of them hitting the data
+ * repository at once.
+ * </p>
+ * <p>
+ * A single instance should be shared by all the coalescing repositories of
+ * the same data repository, usually one per thread. Nothing is kept once a
+ * search completes: callers arriving afterwards perform the search again.
+ * </p>
+ * <p>
+ * Callers awaiting a search share the result read by the caller that
+ * performed it, so it may miss their own uncommitted writes and hold entities
+ * managed by another thread's persistence context, as described on
+ * {@link CoalescingRepository}.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see CoalescingRepository
+ */
+public class SearchCoalescer {
+
+	private final ConcurrentMap<InFlightKey, FutureTask<SearchResult<?>>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Performs the search on <code>repository</code>, unless an equal search
+	 * is already in flight, in which case its result is awaited instead.
+	 * Failures of the shared execution are thrown to all the callers waiting
+	 * for it.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> SearchResult<T> search(final Class<T> entityType, final Search searchDetails,
+			final Repository<T> repository) {
+		final InFlightKey key = new InFlightKey(entityType, searchDetails);
+		final FutureTask<SearchResult<?>> task = new FutureTask<SearchResult<?>>(new Callable<SearchResult<?>>() {
+			@Override
+			public SearchResult<?> call() throws Exception {
+				return repository.search(searchDetails);
+			}
+		});
+		FutureTask<SearchResult<?>> execution = inFlight.putIfAbsent(key, task);
+		if (execution == null) {
+			execution = task;
+			executions.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+		} else {
+			coalesced.incrementAndGet();
+		}
+
+		try {
+			return (SearchResult<T>) execution.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException("The search failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the search in flight", e);
+		}
+	}
+
+	/**
+	 * @return The number of searches currently in flight.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return The number of searches actually performed.
+	 */
+	public long getExecutionCount() {
+		return executions.get();
+	}
+
+	/**
+	 * @return The number of searches that waited for an equal search in
+	 *         flight instead of being performed.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	private static final class InFlightKey {
+		private final Class<?> entityType;
+		private final Search searchDetails;
+
+		InFlightKey(final Class<?> entityType, final Search searchDetails) {
+			this.entityType = entityType;
+			this.searchDetails = searchDetails;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * entityType.hashCode() + (searchDetails == null ? 0 : searchDetails.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof InFlightKey)) {
+				return false;
+			}
+			InFlightKey other = (InFlightKey) obj;
+			return entityType.equals(other.entityType) && (searchDetails == null ? other.searchDetails == null
+					: searchDetails.equals(other.searchDetails));
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.jciombalo.utils.persistence;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class SearchCriteria {
@@ -12,6 +13,22 @@ public class SearchCriteria {
 		return new SearchCriteria(SearchCriteriaType.EQ, attributePath, value, startingWith, endingWith);
 	}
 	
+	/**
+	 * Partial match, translated as a <code>LIKE</code> whose wildcards in
+	 * <code>value</code> are escaped. Prefix searches (starting with
+	 * <code>value</code> only) have a constant prefix, which databases can
+	 * turn into an index range when the collation of the column allows it.
+	 * 
+	 * @param ignoreCase
+	 *            Whether both the attribute and <code>value</code> should be
+	 *            compared in lower case, matching an index on
+	 *            <code>lower(attribute)</code>.
+	 */
+	public static SearchCriteria EQ(final String attributePath, final String value, boolean startingWith,
+			boolean endingWith, boolean ignoreCase) {
+		return new SearchCriteria(SearchCriteriaType.EQ, attributePath, value, startingWith, endingWith, ignoreCase);
+	}
+	
 	public static SearchCriteria GE(final String attributePath, final Object value) {
 		return new SearchCriteria(SearchCriteriaType.GE, attributePath, value);
 	}
@@ -36,6 +53,14 @@ public class SearchCriteria {
 		return new SearchCriteria(SearchCriteriaType.LT, attributePath, value);
 	}
 
+	/**
+	 * Range inclusive of both bounds; a <code>null</code> bound leaves the
+	 * range open on that side.
+	 */
+	public static SearchCriteria RI(final String attributePath, final Object from, final Object to) {
+		return new SearchCriteria(SearchCriteriaType.RI, attributePath, from, to);
+	}
+
 	public static SearchCriteria NO(final SearchCriteria innerCriteria) {
 		return new SearchCriteria(SearchCriteriaType.NO, innerCriteria);
 	}
@@ -88,5 +113,22 @@ public class SearchCriteria {
 	public Object[] getArgs() {
 		return args;
 	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SearchCriteria)) {
+			return false;
+		}
+		SearchCriteria other = (SearchCriteria) obj;
+		return operation == other.operation && Arrays.deepEquals(args, other.args);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * operation.hashCode() + Arrays.deepHashCode(args);
+	}
 	
 }
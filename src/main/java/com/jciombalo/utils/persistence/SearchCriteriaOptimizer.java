@@ -0,0 +1,446 @@
+package com.jciombalo.utils.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Normalizes the {@link SearchCriteria} of a search before it's translated by
+ * a repository, so equivalent searches produce the same, simpler query:
+ * </p>
+ * <ul>
+ * <li>nested <code>AND</code>s and <code>OR</code>s are flattened, and double
+ * negations removed;</li>
+ * <li>repeated criterias and <code>IN</code> values are removed;</li>
+ * <li><code>EQ</code>s and <code>IN</code>s on the same path inside an
+ * <code>OR</code> are folded into a single <code>IN</code>;</li>
+ * <li><code>EQ</code>s, <code>IN</code>s and bounds on the same path inside an
+ * <code>AND</code> are intersected, and a single <code>GE</code> and
+ * <code>LE</code> on the same path are merged into an <code>RI</code>, translated
+ * as a single <code>BETWEEN</code>;</li>
+ * <li>half-open <code>RI</code>s are replaced by the bound they have.</li>
+ * </ul>
+ * <p>
+ * Criterias that can't match any entity (e.g. <code>EQ("age", 1)</code> and
+ * <code>EQ("age", 2)</code>) are replaced by an <code>IN</code> without values,
+ * reported by {@link #matchesNothing(SearchCriteria[])}, so repositories can
+ * return an empty result without querying the data repository. Values are
+ * only compared for numbers and dates, whose ordering and equality are the
+ * same in Java and in the data repository: strings and enums depend on
+ * collations and mappings, so their criterias are kept as they are.
+ * </p>
+ * <p>
+ * Such contradictions are unknown rather than false for entities with
+ * <code>null</code> values, which a negation tells apart, as the data
+ * repository follows the three-valued logic of SQL. Criterias inside a
+ * <code>NO</code> are therefore only simplified in ways keeping their unknown
+ * results.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ */
+public final class SearchCriteriaOptimizer {
+
+	private SearchCriteriaOptimizer() {
+		super();
+	}
+
+	/**
+	 * @return The search with its criterias normalized, or the search itself if
+	 *         they're already normalized.
+	 */
+	public static Search optimize(final Search search) {
+		if (search == null || search.getSearchCriterias() == null) {
+			return search;
+		}
+		final SearchCriteria[] criterias = optimize(search.getSearchCriterias());
+		if (Arrays.equals(criterias, search.getSearchCriterias())) {
+			return search;
+		}
+		return search.withSearchCriterias(criterias);
+	}
+
+	/**
+	 * @param criterias
+	 *            Criterias to be matched all together, as those of a search.
+	 * @return The normalized criterias, or <code>null</code> if every entity
+	 *         matches them.
+	 */
+	public static SearchCriteria[] optimize(final SearchCriteria[] criterias) {
+		if (criterias == null || criterias.length == 0) {
+			return null;
+		}
+		final SearchCriteria optimized = and(Arrays.asList(criterias), false);
+		if (optimized == null) {
+			return null;
+		}
+		if (optimized.getOperation() == SearchCriteriaType.AND) {
+			return innerCriterias(optimized);
+		}
+		return new SearchCriteria[] { optimized };
+	}
+
+	/**
+	 * @return Whether the criterias, as returned by
+	 *         {@link #optimize(SearchCriteria[])}, can't match any entity.
+	 */
+	public static boolean matchesNothing(final SearchCriteria[] criterias) {
+		return criterias != null && criterias.length == 1 && isNothing(criterias[0]);
+	}
+
+	/**
+	 * @param negated
+	 *            Whether the criteria is inside a <code>NO</code>, so it must
+	 *            keep being unknown wherever it was, instead of only matching
+	 *            the same entities.
+	 * @return The simplified criteria, <code>null</code> if it matches every
+	 *         entity, or an <code>IN</code> without values if it matches none.
+	 */
+	private static SearchCriteria optimize(final SearchCriteria criteria, final boolean negated) {
+		switch (criteria.getOperation()) {
+		case NO:
+			final SearchCriteria inner = optimize((SearchCriteria) criteria.getArgs()[0], true);
+			if (inner == null) {
+				return nothing(criteria);
+			} else if (isNothing(inner)) {
+				return null;
+			} else if (inner.getOperation() == SearchCriteriaType.NO) {
+				return (SearchCriteria) inner.getArgs()[0];
+			}
+			return SearchCriteria.NO(inner);
+		case AND:
+			return and(Arrays.asList(innerCriterias(criteria)), negated);
+		case OR:
+			return or(Arrays.asList(innerCriterias(criteria)), negated);
+		case IN:
+			final Set<Object> values = new LinkedHashSet<>(Arrays.asList((Object[]) criteria.getArgs()[1]));
+			return in((String) criteria.getArgs()[0], values);
+		case RI:
+			return range(criteria, negated);
+		default:
+			return criteria;
+		}
+	}
+
+	private static SearchCriteria and(final List<SearchCriteria> criterias, final boolean negated) {
+		final Set<SearchCriteria> terms = new LinkedHashSet<>();
+		for (SearchCriteria criteria : flatten(SearchCriteriaType.AND, criterias, negated)) {
+			if (isNothing(criteria)) {
+				return criteria;
+			} else if (criteria != null) {
+				terms.add(criteria);
+			}
+		}
+		if (terms.isEmpty()) {
+			return null;
+		}
+		if (negated) {
+			final List<SearchCriteria> intersected = foldValues(terms, true);
+			return intersected == null ? combine(SearchCriteriaType.AND, terms)
+					: combine(SearchCriteriaType.AND, mergeRanges(intersected));
+		}
+		for (SearchCriteria term : terms) {
+			if (terms.contains(SearchCriteria.NO(term))) {
+				return nothing(term);
+			}
+		}
+		final List<SearchCriteria> intersected = foldValues(terms, true);
+		if (intersected == null || !intersectBounds(intersected)) {
+			return nothing(terms.iterator().next());
+		}
+		return combine(SearchCriteriaType.AND, mergeRanges(intersected));
+	}
+
+	/**
+	 * A criteria or its negation isn't a tautology, as both are unknown for
+	 * entities with <code>null</code> values, so it's kept.
+	 */
+	private static SearchCriteria or(final List<SearchCriteria> criterias, final boolean negated) {
+		final Set<SearchCriteria> terms = new LinkedHashSet<>();
+		SearchCriteria nothing = null;
+		for (SearchCriteria criteria : flatten(SearchCriteriaType.OR, criterias, negated)) {
+			if (criteria == null) {
+				return null;
+			} else if (isNothing(criteria)) {
+				nothing = criteria;
+			} else {
+				terms.add(criteria);
+			}
+		}
+		if (terms.isEmpty()) {
+			return nothing;
+		}
+		return combine(SearchCriteriaType.OR, foldValues(terms, false));
+	}
+
+	/**
+	 * @return The optimized criterias, with those of the given type spliced
+	 *         into the list.
+	 */
+	private static List<SearchCriteria> flatten(final SearchCriteriaType type, final List<SearchCriteria> criterias,
+			final boolean negated) {
+		final List<SearchCriteria> flattened = new ArrayList<>(criterias.size());
+		for (SearchCriteria criteria : criterias) {
+			final SearchCriteria optimized = optimize(criteria, negated);
+			if (optimized != null && optimized.getOperation() == type) {
+				flattened.addAll(Arrays.asList(innerCriterias(optimized)));
+			} else {
+				flattened.add(optimized);
+			}
+		}
+		return flattened;
+	}
+
+	/**
+	 * Folds the <code>EQ</code>s and <code>IN</code>s on the same path into a
+	 * single criteria, placed where the first of them was, accepting the
+	 * values accepted by all of them (<code>intersect</code>) or by any of
+	 * them.
+	 *
+	 * @return The folded criterias, or <code>null</code> if no value is
+	 *         accepted by all the criterias on a path.
+	 */
+	private static List<SearchCriteria> foldValues(final Set<SearchCriteria> terms, final boolean intersect) {
+		final Map<String, Set<Object>> accepted = new LinkedHashMap<>();
+		final List<Object> order = new ArrayList<>(terms.size());
+		for (SearchCriteria term : terms) {
+			final Set<Object> values = valuesOf(term);
+			if (values == null) {
+				order.add(term);
+				continue;
+			}
+			if (intersect && !isComparable(values)) {
+				order.add(term);
+				continue;
+			}
+			final String attributePath = (String) term.getArgs()[0];
+			if (!accepted.containsKey(attributePath)) {
+				accepted.put(attributePath, values);
+				order.add(attributePath);
+			} else if (intersect) {
+				accepted.get(attributePath).retainAll(values);
+			} else {
+				accepted.get(attributePath).addAll(values);
+			}
+		}
+		final List<SearchCriteria> folded = new ArrayList<>(order.size());
+		for (Object item : order) {
+			if (item instanceof SearchCriteria) {
+				folded.add((SearchCriteria) item);
+			} else if (accepted.get(item).isEmpty()) {
+				return null;
+			} else {
+				folded.add(in((String) item, accepted.get(item)));
+			}
+		}
+		return folded;
+	}
+
+	/**
+	 * Checks the lower (<code>GE</code>, <code>GT</code>) and upper
+	 * (<code>LE</code>, <code>LT</code>) bounds of each path against each other
+	 * and against its <code>EQ</code>, when their values are
+	 * {@link #isComparable(Object) comparable}.
+	 *
+	 * @return <code>false</code> if no value is within all the bounds.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static boolean intersectBounds(final List<SearchCriteria> terms) {
+		for (SearchCriteria lower : terms) {
+			final SearchCriteriaType lowerType = lower.getOperation();
+			if (lowerType != SearchCriteriaType.GE && lowerType != SearchCriteriaType.GT
+					&& !(lowerType == SearchCriteriaType.EQ && lower.getArgs().length == 2)) {
+				continue;
+			}
+			for (SearchCriteria upper : terms) {
+				final SearchCriteriaType upperType = upper.getOperation();
+				if ((upperType != SearchCriteriaType.LE && upperType != SearchCriteriaType.LT
+						&& !(upperType == SearchCriteriaType.EQ && upper.getArgs().length == 2))
+						|| lower == upper || !lower.getArgs()[0].equals(upper.getArgs()[0])) {
+					continue;
+				}
+				final Object from = lower.getArgs()[1];
+				final Object to = upper.getArgs()[1];
+				if (!isComparable(from) || to == null || !from.getClass().equals(to.getClass())) {
+					continue;
+				}
+				final int comparison = ((Comparable) from).compareTo(to);
+				final boolean strict = lowerType == SearchCriteriaType.GT || upperType == SearchCriteriaType.LT;
+				if (comparison > 0 || (comparison == 0 && strict)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return A <code>GE</code> or <code>LE</code> for a half-open range, an
+	 *         <code>IN</code> without values for an empty range of
+	 *         {@link #isComparable(Object) comparable} values, unless negated,
+	 *         otherwise the range itself.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static SearchCriteria range(final SearchCriteria criteria, final boolean negated) {
+		final String attributePath = (String) criteria.getArgs()[0];
+		final Object from = criteria.getArgs()[1];
+		final Object to = criteria.getArgs()[2];
+		if (from == null && to == null) {
+			return criteria;
+		} else if (from == null) {
+			return SearchCriteria.LE(attributePath, to);
+		} else if (to == null) {
+			return SearchCriteria.GE(attributePath, from);
+		} else if (!negated && isComparable(from) && from.getClass().equals(to.getClass())
+				&& ((Comparable) from).compareTo(to) > 0) {
+			return nothing(criteria);
+		}
+		return criteria;
+	}
+
+	/**
+	 * @return Whether the value is ordered and compared for equality the same
+	 *         way in Java and in the data repository. Strings depend on the
+	 *         collation of the data repository, which may ignore case or
+	 *         accents, and enums on the way they're mapped.
+	 */
+	private static boolean isComparable(final Object value) {
+		return value instanceof Number || value instanceof Date || value instanceof Calendar;
+	}
+
+	/**
+	 * @return Whether all the values are {@link #isComparable(Object)
+	 *         comparable}.
+	 */
+	private static boolean isComparable(final Set<Object> values) {
+		for (Object value : values) {
+			if (!isComparable(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges the <code>GE</code> and the <code>LE</code> of each path bounded
+	 * by exactly one of each into an <code>RI</code>, placed where the first of
+	 * them was.
+	 */
+	private static List<SearchCriteria> mergeRanges(final List<SearchCriteria> terms) {
+		final Map<Object, SearchCriteria> lowers = singleBounds(terms, SearchCriteriaType.GE);
+		final Map<Object, SearchCriteria> uppers = singleBounds(terms, SearchCriteriaType.LE);
+		lowers.keySet().retainAll(uppers.keySet());
+		if (lowers.isEmpty()) {
+			return terms;
+		}
+		final List<SearchCriteria> merged = new ArrayList<>(terms.size());
+		final Set<Object> mergedPaths = new HashSet<>();
+		for (SearchCriteria term : terms) {
+			final Object attributePath = term.getArgs()[0];
+			if (!lowers.containsKey(attributePath)
+					|| (term != lowers.get(attributePath) && term != uppers.get(attributePath))) {
+				merged.add(term);
+			} else if (mergedPaths.add(attributePath)) {
+				merged.add(SearchCriteria.RI((String) attributePath, lowers.get(attributePath).getArgs()[1],
+						uppers.get(attributePath).getArgs()[1]));
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * @return The bounds of the given type, by path, for the paths having a
+	 *         single non-<code>null</code> bound of that type.
+	 */
+	private static Map<Object, SearchCriteria> singleBounds(final List<SearchCriteria> terms,
+			final SearchCriteriaType type) {
+		final Map<Object, SearchCriteria> bounds = new HashMap<>();
+		final Set<Object> repeated = new HashSet<>();
+		for (SearchCriteria term : terms) {
+			if (term.getOperation() == type && term.getArgs()[1] != null
+					&& bounds.put(term.getArgs()[0], term) != null) {
+				repeated.add(term.getArgs()[0]);
+			}
+		}
+		bounds.keySet().removeAll(repeated);
+		return bounds;
+	}
+
+	/**
+	 * @return The values accepted by an <code>EQ</code> or an <code>IN</code>,
+	 *         or <code>null</code> for other criterias and for those involving
+	 *         <code>null</code>, whose semantics differ between both.
+	 */
+	private static Set<Object> valuesOf(final SearchCriteria criteria) {
+		final Set<Object> values;
+		if (criteria.getOperation() == SearchCriteriaType.EQ && criteria.getArgs().length == 2) {
+			values = new LinkedHashSet<>();
+			values.add(criteria.getArgs()[1]);
+		} else if (criteria.getOperation() == SearchCriteriaType.IN) {
+			values = new LinkedHashSet<>(Arrays.asList((Object[]) criteria.getArgs()[1]));
+		} else {
+			return null;
+		}
+		return values.contains(null) ? null : values;
+	}
+
+	/**
+	 * @return An <code>EQ</code> for a single value, otherwise an
+	 *         <code>IN</code>.
+	 */
+	private static SearchCriteria in(final String attributePath, final Set<Object> values) {
+		if (values.size() == 1 && values.iterator().next() != null) {
+			return SearchCriteria.EQ(attributePath, values.iterator().next());
+		}
+		return SearchCriteria.IN(attributePath, values.toArray());
+	}
+
+	private static SearchCriteria combine(final SearchCriteriaType type, final Iterable<SearchCriteria> terms) {
+		final List<SearchCriteria> list = new ArrayList<>();
+		for (SearchCriteria term : terms) {
+			list.add(term);
+		}
+		if (list.isEmpty()) {
+			return null;
+		} else if (list.size() == 1) {
+			return list.get(0);
+		}
+		final SearchCriteria[] optional = list.subList(2, list.size()).toArray(new SearchCriteria[list.size() - 2]);
+		if (type == SearchCriteriaType.AND) {
+			return SearchCriteria.AND(list.get(0), list.get(1), optional);
+		}
+		return SearchCriteria.OR(list.get(0), list.get(1), optional);
+	}
+
+	private static SearchCriteria[] innerCriterias(final SearchCriteria criteria) {
+		final SearchCriteria[] innerCriterias = new SearchCriteria[criteria.getArgs().length];
+		System.arraycopy(criteria.getArgs(), 0, innerCriterias, 0, innerCriterias.length);
+		return innerCriterias;
+	}
+
+	private static boolean isNothing(final SearchCriteria criteria) {
+		return criteria != null && criteria.getOperation() == SearchCriteriaType.IN
+				&& ((Object[]) criteria.getArgs()[1]).length == 0;
+	}
+
+	/**
+	 * @return An <code>IN</code> without values, on the first path found in
+	 *         the criteria.
+	 */
+	private static SearchCriteria nothing(final SearchCriteria criteria) {
+		SearchCriteria leaf = criteria;
+		while (!(leaf.getArgs()[0] instanceof String)) {
+			leaf = (SearchCriteria) leaf.getArgs()[0];
+		}
+		return SearchCriteria.IN((String) leaf.getArgs()[0], new Object[0]);
+	}
+}
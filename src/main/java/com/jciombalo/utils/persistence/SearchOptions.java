@@ -0,0 +1,105 @@
+package com.jciombalo.utils.persistence;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How a repository should execute a {@link Search}, without changing the
+ * entities it finds. Options a repository can't apply are ignored.
+ *
+ * @author jorge.ciombalo
+ *
+ * @see SearchBuilder#readOnly()
+ * @see SearchBuilder#fetchSize(int)
+ * @see SearchBuilder#autoFlush(boolean)
+ * @see SearchBuilder#timeout(long, java.util.concurrent.TimeUnit)
+ * @see SearchBuilder#hint(String, Object)
+ */
+public final class SearchOptions {
+
+	/**
+	 * The options of searches that don't define any.
+	 */
+	public static final SearchOptions DEFAULT = new SearchOptions(false, null, null, null,
+			Collections.<String, Object>emptyMap());
+
+	private final boolean readOnly;
+	private final Integer fetchSize;
+	private final Boolean autoFlush;
+	private final Integer timeoutMillis;
+	private final Map<String, Object> hints;
+
+	SearchOptions(final boolean readOnly, final Integer fetchSize, final Boolean autoFlush,
+			final Integer timeoutMillis, final Map<String, Object> hints) {
+		super();
+		this.readOnly = readOnly;
+		this.fetchSize = fetchSize;
+		this.autoFlush = autoFlush;
+		this.timeoutMillis = timeoutMillis;
+		this.hints = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(hints));
+	}
+
+	/**
+	 * @return Whether the entities found shouldn't be tracked for changes.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * @return The number of rows fetched from the database at a time, or
+	 *         <code>null</code> for the default of the driver.
+	 */
+	public Integer getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * @return Whether pending changes should be written before searching, or
+	 *         <code>null</code> for the default of the repository.
+	 */
+	public Boolean getAutoFlush() {
+		return autoFlush;
+	}
+
+	/**
+	 * @return The time, in milliseconds, the queries of the search may take,
+	 *         or <code>null</code> for no limit.
+	 */
+	public Integer getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @return Additional hints to the repository, by name.
+	 */
+	public Map<String, Object> getHints() {
+		return hints;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SearchOptions)) {
+			return false;
+		}
+		SearchOptions other = (SearchOptions) obj;
+		return readOnly == other.readOnly
+				&& (fetchSize == null ? other.fetchSize == null : fetchSize.equals(other.fetchSize))
+				&& (autoFlush == null ? other.autoFlush == null : autoFlush.equals(other.autoFlush))
+				&& (timeoutMillis == null ? other.timeoutMillis == null : timeoutMillis.equals(other.timeoutMillis))
+				&& hints.equals(other.hints);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = readOnly ? 1 : 0;
+		hash = 31 * hash + (fetchSize == null ? 0 : fetchSize.hashCode());
+		hash = 31 * hash + (autoFlush == null ? 0 : autoFlush.hashCode());
+		hash = 31 * hash + (timeoutMillis == null ? 0 : timeoutMillis.hashCode());
+		return 31 * hash + hints.hashCode();
+	}
+}
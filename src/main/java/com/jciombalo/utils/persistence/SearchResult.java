@@ -1,16 +1,30 @@
 package com.jciombalo.utils.persistence;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class SearchResult<T> implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Number of items found when the entities matching the search weren't
+	 * counted.
+	 * 
+	 * @see CountPolicy
+	 */
+	public static final long UNKNOWN_ITEMS_COUNT = -1l;
+
 	private final List<T> data;
 	private final long itemsFound;
 	private final long maxPageSize;
 	private final long currentPage;
+	private final boolean itemsCountEstimated;
+	private final boolean nextPage;
+	private final Object[] continuationKey;
+	private final Map<String, Map<Object, Long>> facets;
 
 	public SearchResult(final List<T> data) {
 		super();
@@ -24,26 +38,75 @@ public class SearchResult<T> implements Serializable {
 			this.maxPageSize = this.itemsFound;
 			this.currentPage = 1l;
 		}
+		this.itemsCountEstimated = false;
+		this.nextPage = false;
+		this.continuationKey = null;
+		this.facets = Collections.emptyMap();
 	}
 	
 	public SearchResult(final List<T> data, final long itemsFound, 
 			final long maxPageSize,
 			final long currentPage) {
+		this(data, itemsFound, false, maxPageSize, currentPage, currentPage * maxPageSize < itemsFound, null);
+	}
+	
+	public SearchResult(final List<T> data, final long itemsFound, 
+			final boolean itemsCountEstimated,
+			final long maxPageSize,
+			final long currentPage,
+			final boolean nextPage,
+			final Object[] continuationKey) {
+		this(data, itemsFound, itemsCountEstimated, maxPageSize, currentPage, nextPage, continuationKey,
+				Collections.<String, Map<Object, Long>>emptyMap());
+	}
+	
+	public SearchResult(final List<T> data, final long itemsFound, 
+			final boolean itemsCountEstimated,
+			final long maxPageSize,
+			final long currentPage,
+			final boolean nextPage,
+			final Object[] continuationKey,
+			final Map<String, Map<Object, Long>> facets) {
 		super();
 		this.data = data;
 		this.itemsFound = itemsFound;
+		this.itemsCountEstimated = itemsCountEstimated;
 		this.maxPageSize = maxPageSize;
 		this.currentPage = currentPage;
+		this.nextPage = nextPage;
+		this.continuationKey = continuationKey;
+		this.facets = Collections.unmodifiableMap(facets);
 	}
 
 	public List<T> getData() {
 		return data;
 	}
 
+	/**
+	 * @return The number of entities matching the search, or
+	 *         {@link #UNKNOWN_ITEMS_COUNT} if they weren't counted.
+	 * @see CountPolicy
+	 */
 	public long getItemsFound() {
 		return this.itemsFound;
 	}
 
+	/**
+	 * @return Whether the {@link #getItemsFound() number of items found} is an
+	 *         estimate instead of an exact count.
+	 */
+	public boolean isItemsCountEstimated() {
+		return itemsCountEstimated;
+	}
+
+	/**
+	 * @return Whether there are more entities matching the search after this
+	 *         page.
+	 */
+	public boolean hasNextPage() {
+		return nextPage;
+	}
+
 	public long getMaxPageSize() {
 		return maxPageSize;
 	}
@@ -52,8 +115,47 @@ public class SearchResult<T> implements Serializable {
 		return currentPage;
 	}
 
+	/**
+	 * @return For keyset paginated searches, the values of the sorting
+	 *         attributes of the last entity found, to be given to
+	 *         {@link SearchBuilder#selectAfter(Object[], Integer)} to retrieve
+	 *         the next page. <code>null</code> if there are no more pages, or
+	 *         if the search isn't keyset paginated. Holds null values if the
+	 *         search sorts by nullable attributes, which keyset paginated
+	 *         searches must not do.
+	 */
+	public Object[] getContinuationKey() {
+		return continuationKey;
+	}
+
+	/**
+	 * @return For each facet path of the search, the number of entities
+	 *         matching the search per value of the path, the most frequent
+	 *         values first. Empty if the search has no facets.
+	 * @see SearchBuilder#facets(String, String...)
+	 */
+	public Map<String, Map<Object, Long>> getFacets() {
+		return facets;
+	}
+
+	/**
+	 * @param facets
+	 *            The values counted per facet path.
+	 * @return A copy of this result, reporting the given facets.
+	 */
+	public SearchResult<T> withFacets(final Map<String, Map<Object, Long>> facets) {
+		return new SearchResult<T>(data, itemsFound, itemsCountEstimated, maxPageSize, currentPage, nextPage,
+				continuationKey, facets);
+	}
+
+	/**
+	 * @return The number of pages, or {@link #UNKNOWN_ITEMS_COUNT} if the
+	 *         entities matching the search weren't counted.
+	 */
 	public long getPagesFound() {
-		if (this.itemsFound == 0) {
+		if (this.itemsFound == UNKNOWN_ITEMS_COUNT) {
+			return UNKNOWN_ITEMS_COUNT;
+		} else if (this.itemsFound == 0) {
 			return 0;
 		} else {
 			return this.itemsFound / this.maxPageSize + (this.itemsFound % this.maxPageSize > 0 ? 1 : 0);
@@ -0,0 +1,229 @@
+package com.jciombalo.utils.persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Cache of the results of the searches performed through
+ * {@link CachingRepository caching repositories}, keyed by entity type and by
+ * the {@link Search#equals(Object) value} of the search. Once
+ * <code>maxSize</code> results are cached, the least recently used one is
+ * evicted, and every result expires after the time to live given.
+ * </p>
+ * <p>
+ * A single cache instance should be shared by all the caching repositories of
+ * the same data repository, so a write to any of them invalidates the results
+ * cached for its entity type. Writes performed elsewhere are only noticed once
+ * the results expire.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see CachingRepository
+ */
+public class SearchResultCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private final int maxSize;
+	private final long timeToLiveNanos;
+	private final Map<CacheKey, CacheEntry> entries;
+	private final ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param timeToLive
+	 *            Positive time a result stays cached.
+	 * @param unit
+	 *            The unit of <code>timeToLive</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>timeToLive</code> is not positive.
+	 */
+	public SearchResultCache(final long timeToLive, final TimeUnit unit) throws IllegalArgumentException {
+		this(DEFAULT_MAX_SIZE, timeToLive, unit);
+	}
+
+	/**
+	 * @param maxSize
+	 *            Positive number of results that can be cached.
+	 * @param timeToLive
+	 *            Positive time a result stays cached.
+	 * @param unit
+	 *            The unit of <code>timeToLive</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxSize</code> or <code>timeToLive</code> is not
+	 *             positive.
+	 */
+	public SearchResultCache(final int maxSize, final long timeToLive, final TimeUnit unit)
+			throws IllegalArgumentException {
+		super();
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Max size must be a positive number");
+		}
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException("Time to live must be a positive number");
+		}
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+		this.entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+				if (size() > SearchResultCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return The result cached for the search, or <code>null</code> if there's
+	 *         none or it has expired.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized <T> SearchResult<T> get(final Class<T> entityType, final Search searchDetails) {
+		final CacheKey key = new CacheKey(entityType, searchDetails);
+		final CacheEntry entry = entries.get(key);
+		if (entry != null && System.nanoTime() - entry.cachedAt >= timeToLiveNanos) {
+			entries.remove(key);
+			evictions.incrementAndGet();
+		} else if (entry != null) {
+			hits.incrementAndGet();
+			return (SearchResult<T>) entry.result;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return The current generation of the entity type, to be given to
+	 *         {@link #put} once the search started at this point completes.
+	 */
+	long generation(final Class<?> entityType) {
+		return generationOf(entityType).get();
+	}
+
+	/**
+	 * Caches the result of a search, unless the entity type was invalidated
+	 * since <code>generation</code>, as the result may be outdated.
+	 */
+	synchronized void put(final Class<?> entityType, final Search searchDetails, final SearchResult<?> result,
+			final long generation) {
+		if (generationOf(entityType).get() == generation) {
+			entries.put(new CacheKey(entityType, searchDetails), new CacheEntry(result, System.nanoTime()));
+		}
+	}
+
+	/**
+	 * Removes all the results cached for the entity type.
+	 */
+	synchronized void invalidate(final Class<?> entityType) {
+		generationOf(entityType).incrementAndGet();
+		final Iterator<CacheKey> keys = entries.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().entityType.equals(entityType)) {
+				keys.remove();
+			}
+		}
+	}
+
+	private AtomicLong generationOf(final Class<?> entityType) {
+		AtomicLong generation = generations.get(entityType);
+		if (generation == null) {
+			final AtomicLong newGeneration = new AtomicLong();
+			generation = generations.putIfAbsent(entityType, newGeneration);
+			if (generation == null) {
+				generation = newGeneration;
+			}
+		}
+		return generation;
+	}
+
+	/**
+	 * @return The number of results currently cached.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes all the cached results.
+	 */
+	public synchronized void clear() {
+		for (AtomicLong generation : generations.values()) {
+			generation.incrementAndGet();
+		}
+		entries.clear();
+	}
+
+	/**
+	 * @return The number of searches served from the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of searches not found in the cache.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of results removed because the cache was full or
+	 *         they expired, not counting invalidations.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private static final class CacheEntry {
+		private final SearchResult<?> result;
+		private final long cachedAt;
+
+		CacheEntry(final SearchResult<?> result, final long cachedAt) {
+			this.result = result;
+			this.cachedAt = cachedAt;
+		}
+	}
+
+	private static final class CacheKey {
+		private final Class<?> entityType;
+		private final Search searchDetails;
+
+		CacheKey(final Class<?> entityType, final Search searchDetails) {
+			this.entityType = entityType;
+			this.searchDetails = searchDetails;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * entityType.hashCode() + (searchDetails == null ? 0 : searchDetails.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) obj;
+			return entityType.equals(other.entityType) && (searchDetails == null ? other.searchDetails == null
+					: searchDetails.equals(other.searchDetails));
+		}
+	}
+}
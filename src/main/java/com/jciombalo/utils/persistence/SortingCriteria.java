@@ -26,5 +26,23 @@ public class SortingCriteria {
 	public boolean isDesc() {
 		return desc;
 	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SortingCriteria)) {
+			return false;
+		}
+		SortingCriteria other = (SortingCriteria) obj;
+		return desc == other.desc
+				&& (attributePath == null ? other.attributePath == null : attributePath.equals(other.attributePath));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (attributePath == null ? 0 : attributePath.hashCode()) + (desc ? 1 : 0);
+	}
 	
 }
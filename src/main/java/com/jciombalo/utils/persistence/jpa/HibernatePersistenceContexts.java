@@ -0,0 +1,55 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Access to the persistence context of Hibernate sessions, which JPA doesn't
+ * expose. Hibernate is an optional dependency, so this class must only be
+ * loaded for entity managers {@link #isHibernate(EntityManager) backed by
+ * Hibernate}.
+ *
+ * @author jorge.ciombalo
+ */
+final class HibernatePersistenceContexts {
+
+	private HibernatePersistenceContexts() {
+		super();
+	}
+
+	/**
+	 * Tells whether the entity manager is backed by a Hibernate session,
+	 * without loading any Hibernate class.
+	 */
+	static boolean isHibernate(final EntityManager em) {
+		final Object delegate = em.getDelegate();
+		return delegate != null && delegate.getClass().getName().startsWith("org.hibernate.");
+	}
+
+	/**
+	 * Detaches the instances of the entities identified by <code>ids</code>
+	 * held by the persistence context, including uninitialized proxies,
+	 * without looking up the ones it doesn't hold.
+	 */
+	static void detach(final EntityManager em, final Class<?> entityType, final Collection<?> ids) {
+		final SessionImplementor session = em.unwrap(SessionImplementor.class);
+		final EntityPersister persister = session.getFactory()
+				.getEntityPersister(session.getFactory().getClassMetadata(entityType).getEntityName());
+		final PersistenceContext context = session.getPersistenceContext();
+		for (Object id : ids) {
+			final EntityKey key = session.generateEntityKey((Serializable) id, persister);
+			final Object entity = context.getEntity(key);
+			final Object managed = entity != null ? entity : context.getProxy(key);
+			if (managed != null) {
+				em.detach(managed);
+			}
+		}
+	}
+}
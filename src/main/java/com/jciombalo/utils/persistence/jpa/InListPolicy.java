@@ -0,0 +1,168 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.Arrays;
+
+import com.jciombalo.utils.persistence.Search;
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SearchCriteriaType;
+
+/**
+ * <p>
+ * How the value lists of {@link SearchCriteria#IN IN} criterias are turned
+ * into bind parameters by a {@link JpaRepository}. Each value becomes a
+ * parameter, so lists of different sizes render different SQL statements, and
+ * long lists may exceed the list limits of the database (e.g. 1000 values per
+ * list on Oracle).
+ * </p>
+ * <p>
+ * Padded lists repeat their last value up to the next power of two, so lists
+ * of 5 to 8 values share the same statement, and the number of distinct
+ * statements prepared grows logarithmically with the list sizes. Lists longer
+ * than <code>maxListSize</code> are split into <code>OR</code>ed lists of up to
+ * that size. Splitting only addresses limits per list: all the values are
+ * still bound to the same statement, so limits per statement (e.g. 2100
+ * parameters on SQL Server) can only be met by splitting the search itself
+ * into several queries.
+ * </p>
+ * <p>
+ * Very large sets are better joined from a temporary table or a
+ * <code>VALUES</code> list, which criteria queries can't express; such
+ * searches should be written as native queries instead.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see JpaRepository#withInListPolicy(InListPolicy)
+ */
+public final class InListPolicy {
+
+	/**
+	 * Maximum size of the lists of the default policy, a power of two below
+	 * the lowest list limit among the usual databases.
+	 */
+	public static final int DEFAULT_MAX_LIST_SIZE = 512;
+
+	/**
+	 * Pads the lists to powers of two and splits them past
+	 * {@link #DEFAULT_MAX_LIST_SIZE} values. Used by default.
+	 */
+	public static final InListPolicy DEFAULT = new InListPolicy(true, DEFAULT_MAX_LIST_SIZE);
+
+	/**
+	 * Binds every list as it is.
+	 */
+	public static final InListPolicy UNCHANGED = new InListPolicy(false, Integer.MAX_VALUE);
+
+	private final boolean padded;
+	private final int maxListSize;
+
+	/**
+	 * @param padded
+	 *            Whether lists should be padded up to the next power of two,
+	 *            never past <code>maxListSize</code>.
+	 * @param maxListSize
+	 *            Positive number of values bound to a single list.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxListSize</code> is not positive.
+	 */
+	public InListPolicy(final boolean padded, final int maxListSize) throws IllegalArgumentException {
+		super();
+		if (maxListSize <= 0) {
+			throw new IllegalArgumentException("Max list size must be a positive number");
+		}
+		this.padded = padded;
+		this.maxListSize = maxListSize;
+	}
+
+	public boolean isPadded() {
+		return padded;
+	}
+
+	public int getMaxListSize() {
+		return maxListSize;
+	}
+
+	/**
+	 * @return The search with its <code>IN</code> lists rewritten by this
+	 *         policy, or the search itself if none had to be.
+	 */
+	Search apply(final Search search) {
+		if (search == null || search.getSearchCriterias() == null) {
+			return search;
+		}
+		final SearchCriteria[] criterias = apply(search.getSearchCriterias());
+		return criterias == search.getSearchCriterias() ? search : search.withSearchCriterias(criterias);
+	}
+
+	/**
+	 * @return The criterias with their <code>IN</code> lists rewritten by this
+	 *         policy, or the same array if none had to be.
+	 */
+	SearchCriteria[] apply(final SearchCriteria[] criterias) {
+		if (criterias == null) {
+			return null;
+		}
+		SearchCriteria[] applied = criterias;
+		for (int i = 0; i < criterias.length; i++) {
+			final SearchCriteria criteria = apply(criterias[i]);
+			if (criteria != criterias[i]) {
+				if (applied == criterias) {
+					applied = criterias.clone();
+				}
+				applied[i] = criteria;
+			}
+		}
+		return applied;
+	}
+
+	private SearchCriteria apply(final SearchCriteria criteria) {
+		final SearchCriteriaType operation = criteria.getOperation();
+		if (operation == SearchCriteriaType.NO) {
+			final SearchCriteria inner = (SearchCriteria) criteria.getArgs()[0];
+			final SearchCriteria applied = apply(inner);
+			return applied == inner ? criteria : SearchCriteria.NO(applied);
+		} else if (operation == SearchCriteriaType.AND || operation == SearchCriteriaType.OR) {
+			final SearchCriteria[] inner = new SearchCriteria[criteria.getArgs().length];
+			System.arraycopy(criteria.getArgs(), 0, inner, 0, inner.length);
+			final SearchCriteria[] applied = apply(inner);
+			return applied == inner ? criteria : combine(operation, applied);
+		} else if (operation == SearchCriteriaType.IN) {
+			return applyIn(criteria);
+		}
+		return criteria;
+	}
+
+	private SearchCriteria applyIn(final SearchCriteria criteria) {
+		final String attributePath = (String) criteria.getArgs()[0];
+		final Object[] values = (Object[]) criteria.getArgs()[1];
+		if (values.length == 0 || (values.length <= maxListSize && paddedSize(values.length) == values.length)) {
+			return criteria;
+		}
+		final int chunks = (values.length + maxListSize - 1) / maxListSize;
+		final SearchCriteria[] lists = new SearchCriteria[chunks];
+		for (int i = 0; i < chunks; i++) {
+			final int from = i * maxListSize;
+			final int size = Math.min(maxListSize, values.length - from);
+			final Object[] list = Arrays.copyOfRange(values, from, from + paddedSize(size));
+			Arrays.fill(list, size, list.length, values[from + size - 1]);
+			lists[i] = SearchCriteria.IN(attributePath, list);
+		}
+		return chunks == 1 ? lists[0] : combine(SearchCriteriaType.OR, lists);
+	}
+
+	private int paddedSize(final int size) {
+		if (!padded || size <= 1) {
+			return size;
+		}
+		final int powerOfTwo = Integer.highestOneBit(size - 1) << 1;
+		return powerOfTwo <= 0 ? size : Math.min(powerOfTwo, maxListSize);
+	}
+
+	private static SearchCriteria combine(final SearchCriteriaType operation, final SearchCriteria[] criterias) {
+		final SearchCriteria[] optional = Arrays.copyOfRange(criterias, 2, criterias.length);
+		if (operation == SearchCriteriaType.AND) {
+			return SearchCriteria.AND(criterias[0], criterias[1], optional);
+		}
+		return SearchCriteria.OR(criterias[0], criterias[1], optional);
+	}
+}
@@ -0,0 +1,227 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * {@link RepositoryMetrics} keeping, in memory, a latency histogram per entity
+ * type, operation and search shape. Recording is lock-free: each histogram is
+ * made of atomic counters, with one bucket per power of two nanoseconds, so
+ * concurrent operations never wait on each other.
+ * </p>
+ * <p>
+ * The recorded metrics are read through {@link #snapshot()}, to be exported to
+ * any metrics system.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ */
+public class InMemoryRepositoryMetrics implements RepositoryMetrics {
+
+	private static final int BUCKETS = 64;
+
+	private final ConcurrentMap<MetricKey, Histogram> histograms = new ConcurrentHashMap<>();
+
+	@Override
+	public void record(Class<?> entityType, RepositoryOperation operation, String shape, long elapsedNanos,
+			long rows) {
+		final MetricKey key = new MetricKey(entityType, operation, shape);
+		Histogram histogram = histograms.get(key);
+		if (histogram == null) {
+			final Histogram newHistogram = new Histogram();
+			histogram = histograms.putIfAbsent(key, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		histogram.record(elapsedNanos, rows);
+	}
+
+	/**
+	 * @return The metrics recorded so far, one snapshot per entity type,
+	 *         operation and search shape.
+	 */
+	public List<Snapshot> snapshot() {
+		final List<Snapshot> snapshots = new ArrayList<>(histograms.size());
+		for (Map.Entry<MetricKey, Histogram> entry : histograms.entrySet()) {
+			snapshots.add(entry.getValue().snapshot(entry.getKey()));
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Discards all the metrics recorded so far.
+	 */
+	public void clear() {
+		histograms.clear();
+	}
+
+	/**
+	 * Metrics of an operation, as recorded when {@link #snapshot()} was taken.
+	 */
+	public static class Snapshot {
+
+		private final Class<?> entityType;
+		private final RepositoryOperation operation;
+		private final String shape;
+		private final long count;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long rows;
+		private final long[] buckets;
+
+		Snapshot(final Class<?> entityType, final RepositoryOperation operation, final String shape,
+				final long count, final long totalNanos, final long maxNanos, final long rows, final long[] buckets) {
+			super();
+			this.entityType = entityType;
+			this.operation = operation;
+			this.shape = shape;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.rows = rows;
+			this.buckets = buckets;
+		}
+
+		public Class<?> getEntityType() {
+			return entityType;
+		}
+
+		public RepositoryOperation getOperation() {
+			return operation;
+		}
+
+		/**
+		 * @return The search shape fingerprint, or <code>null</code> for
+		 *         operations other than searches.
+		 */
+		public String getShape() {
+			return shape;
+		}
+
+		/**
+		 * @return The number of times the operation was performed.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		/**
+		 * @return The number of entities fetched, counted or written by all
+		 *         the executions of the operation.
+		 */
+		public long getRows() {
+			return rows;
+		}
+
+		/**
+		 * @return The number of executions per latency bucket, where the
+		 *         bucket <code>i</code> holds latencies from
+		 *         <code>2<sup>i</sup></code> up to
+		 *         <code>2<sup>i+1</sup> - 1</code> nanoseconds (the first one
+		 *         also holding zero).
+		 */
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		/**
+		 * @param percentile
+		 *            The percentile wanted, between 0 and 100.
+		 * @return The upper bound of the latency bucket holding the given
+		 *         percentile, in nanoseconds, never above the maximum latency
+		 *         recorded, or zero if the operation wasn't performed.
+		 * @throws IllegalArgumentException
+		 *             If <code>percentile</code> is out of range.
+		 */
+		public long getPercentileNanos(final double percentile) throws IllegalArgumentException {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("Percentile must be between 0 and 100");
+			}
+			final long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					final long upperBound = i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+					return Math.min(upperBound, maxNanos);
+				}
+			}
+			return 0;
+		}
+	}
+
+	private static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+
+		void record(final long elapsedNanos, final long rows) {
+			final long nanos = Math.max(elapsedNanos, 0);
+			buckets.incrementAndGet(nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			this.rows.addAndGet(rows);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		Snapshot snapshot(final MetricKey key) {
+			final long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+			}
+			return new Snapshot(key.entityType, key.operation, key.shape, count.get(), totalNanos.get(),
+					maxNanos.get(), rows.get(), counts);
+		}
+	}
+
+	private static final class MetricKey {
+		private final Class<?> entityType;
+		private final RepositoryOperation operation;
+		private final String shape;
+
+		MetricKey(final Class<?> entityType, final RepositoryOperation operation, final String shape) {
+			this.entityType = entityType;
+			this.operation = operation;
+			this.shape = shape;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 31 * entityType.hashCode() + operation.hashCode();
+			return 31 * hash + (shape == null ? 0 : shape.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof MetricKey)) {
+				return false;
+			}
+			MetricKey other = (MetricKey) obj;
+			return entityType.equals(other.entityType) && operation == other.operation
+					&& (shape == null ? other.shape == null : shape.equals(other.shape));
+		}
+	}
+}
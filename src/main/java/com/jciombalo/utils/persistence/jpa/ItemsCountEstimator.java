@@ -0,0 +1,35 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import javax.persistence.EntityManager;
+
+import com.jciombalo.utils.persistence.CountPolicy;
+import com.jciombalo.utils.persistence.Search;
+
+/**
+ * <p>
+ * Estimates the number of entities matching a search, for searches using the
+ * {@link CountPolicy#ESTIMATE} count policy. JPA offers no portable way of
+ * estimating counts, so implementations usually rely on the statistics of the
+ * database (e.g. the planner row estimate of an <code>EXPLAIN</code>, or the
+ * table row count kept by the catalog).
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see JpaRepository#withItemsCountEstimator(ItemsCountEstimator)
+ */
+public interface ItemsCountEstimator {
+
+	/**
+	 * @param em
+	 *            The entity manager of the repository performing the search.
+	 * @param entityType
+	 *            The kind of the entities searched.
+	 * @param searchDetails
+	 *            The search whose matching entities should be estimated.
+	 * @return The estimated number of entities, or <code>null</code> if no
+	 *         estimate is available, in which case the entities are counted
+	 *         exactly.
+	 */
+	Long estimate(EntityManager em, Class<?> entityType, Search searchDetails);
+}
@@ -1,25 +1,106 @@
 package com.jciombalo.utils.persistence.jpa;
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.persistence.Cache;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
+import javax.persistence.metamodel.EntityType;
 
+import com.jciombalo.utils.persistence.Aggregation;
+import com.jciombalo.utils.persistence.AggregationBuilder;
+import com.jciombalo.utils.persistence.BatchReport;
+import com.jciombalo.utils.persistence.CountPolicy;
 import com.jciombalo.utils.persistence.Repository;
 import com.jciombalo.utils.persistence.Search;
+import com.jciombalo.utils.persistence.SearchBuilder;
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SearchCriteriaOptimizer;
+import com.jciombalo.utils.persistence.SearchOptions;
 import com.jciombalo.utils.persistence.SearchResult;
+import com.jciombalo.utils.persistence.SortingCriteria;
 
 public class JpaRepository<T> implements Repository<T> {
 	
+	/**
+	 * Maximum number of identifiers bound to a single <code>IN</code> list,
+	 * keeping bulk statements under the parameter limits of the databases.
+	 */
+	static final int ID_CHUNK_SIZE = 1000;
+
+	/**
+	 * Maximum number of entities detached one by one after a bulk statement
+	 * when the persistence context can't be inspected, above which the whole
+	 * persistence context is cleared instead.
+	 */
+	static final int DETACH_BY_REFERENCE_LIMIT = 16;
+	
+	private static final String QUERY_TIMEOUT_HINT = "javax.persistence.query.timeout";
+	private static final String HIBERNATE_READ_ONLY_HINT = "org.hibernate.readOnly";
+	private static final String ECLIPSELINK_READ_ONLY_HINT = "eclipselink.read-only";
+	private static final String HIBERNATE_FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+	private static final String ECLIPSELINK_FETCH_SIZE_HINT = "eclipselink.jdbc.fetch-size";
+	private static final String FACET_COUNT_ALIAS = "facetCount";
+	
+	private static final Map<Class<?>, Class<?>> PRIMITIVE_WRAPPERS = new HashMap<>();
+	static {
+		PRIMITIVE_WRAPPERS.put(boolean.class, Boolean.class);
+		PRIMITIVE_WRAPPERS.put(byte.class, Byte.class);
+		PRIMITIVE_WRAPPERS.put(char.class, Character.class);
+		PRIMITIVE_WRAPPERS.put(short.class, Short.class);
+		PRIMITIVE_WRAPPERS.put(int.class, Integer.class);
+		PRIMITIVE_WRAPPERS.put(long.class, Long.class);
+		PRIMITIVE_WRAPPERS.put(float.class, Float.class);
+		PRIMITIVE_WRAPPERS.put(double.class, Double.class);
+	}
+	
+	private static final Set<Class<?>> INTEGRAL_TYPES = new HashSet<Class<?>>(
+			Arrays.<Class<?>>asList(Byte.class, Short.class, Integer.class, Long.class));
+	
 	private final Class<T> entityType;
     protected EntityManager em;
+    private QueryPlanCache queryPlanCache;
+    private ItemsCountEstimator itemsCountEstimator;
+    private RepositoryMetrics metrics;
+    private EntityManagerFactory entityManagerFactory;
+    private ExecutorService executor;
+    private long countTimeoutNanos;
+    private boolean parallelFacets;
+    private InListPolicy inListPolicy = InListPolicy.DEFAULT;
     
 	public JpaRepository(EntityManager em, Class<T> entityType) {
 		super();
@@ -27,82 +108,1465 @@ public class JpaRepository<T> implements Repository<T> {
         this.entityType = entityType;
 	}
 
+	/**
+	 * Makes the searches of this repository reuse the criteria queries cached
+	 * by <code>queryPlanCache</code>, translating only the searches whose
+	 * structure wasn't seen before.
+	 * 
+	 * @param queryPlanCache
+	 *            Cache shared by the repositories of the same persistence unit,
+	 *            or <code>null</code> to translate every search.
+	 * @return This repository.
+	 */
+	public JpaRepository<T> withQueryPlanCache(QueryPlanCache queryPlanCache) {
+		this.queryPlanCache = queryPlanCache;
+		return this;
+	}
+
+	/**
+	 * Defines how the entities matching searches with the
+	 * {@link CountPolicy#ESTIMATE} count policy are estimated. Without an
+	 * estimator, these searches count the entities exactly.
+	 * 
+	 * @param itemsCountEstimator
+	 *            The estimator to be used, or <code>null</code> to count
+	 *            exactly.
+	 * @return This repository.
+	 */
+	public JpaRepository<T> withItemsCountEstimator(ItemsCountEstimator itemsCountEstimator) {
+		this.itemsCountEstimator = itemsCountEstimator;
+		return this;
+	}
+
+	/**
+	 * Reports the latency and the number of rows of every operation of this
+	 * repository to <code>metrics</code>.
+	 * 
+	 * @param metrics
+	 *            The metrics to be recorded, usually shared by all the
+	 *            repositories, or <code>null</code> to record nothing.
+	 * @return This repository.
+	 */
+	public JpaRepository<T> withMetrics(RepositoryMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Defines where the {@link EntityManager entity managers} of the
+	 * asynchronous searches come from.
+	 * 
+	 * @param entityManagerFactory
+	 *            The factory of the persistence unit of this repository.
+	 * @return This repository.
+	 * @see #searchAsync(Search)
+	 */
+	public JpaRepository<T> withEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+		return this;
+	}
+
+	/**
+	 * Defines the executor running the asynchronous searches.
+	 * 
+	 * @param executor
+	 *            The executor to be used, or <code>null</code> to use a
+	 *            {@link SearchExecutors#newDefaultExecutor() default executor}
+	 *            shared by all the repositories.
+	 * @return This repository.
+	 * @see #searchAsync(Search)
+	 */
+	public JpaRepository<T> withExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Makes paginated searches counting their entities exactly run the count
+	 * query on another thread, at the same time as the page query. The count
+	 * uses its own {@link EntityManager}, created from the
+	 * {@link #withEntityManagerFactory factory} of this repository and run by
+	 * its {@link #withExecutor executor}, so it only sees committed changes.
+	 * A count not completed within <code>timeout</code> since it was started
+	 * is cancelled, leaving the number of items found
+	 * {@link SearchResult#UNKNOWN_ITEMS_COUNT unknown}.
+	 * {@link #searchAsync(Search) Asynchronous searches}, already running on
+	 * the executor, count on their own thread instead.
+	 * 
+	 * @param timeout
+	 *            Time the page waits for the count, or zero to count on the
+	 *            same thread, after fetching the page.
+	 * @param unit
+	 *            The unit of <code>timeout</code>.
+	 * @return This repository.
+	 * @throws IllegalArgumentException
+	 *             If <code>timeout</code> is negative.
+	 */
+	public JpaRepository<T> withParallelCount(long timeout, TimeUnit unit) throws IllegalArgumentException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Count timeout can't be negative");
+		}
+		this.countTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Makes searches with {@link SearchBuilder#facets facets} count
+	 * each facet on another thread, at the same time as the page query. Each
+	 * facet uses its own {@link EntityManager}, created from the
+	 * {@link #withEntityManagerFactory factory} of this repository and run by
+	 * its {@link #withExecutor executor}, so it only sees committed changes.
+	 * {@link #searchAsync(Search) Asynchronous searches}, already running on
+	 * the executor, count their facets on their own thread instead.
+	 * 
+	 * @param parallelFacets
+	 *            Whether to count the facets in parallel, or one after the
+	 *            other after fetching the page, as by default.
+	 * @return This repository.
+	 */
+	public JpaRepository<T> withParallelFacets(boolean parallelFacets) {
+		this.parallelFacets = parallelFacets;
+		return this;
+	}
+
+	/**
+	 * Defines how the value lists of <code>IN</code> criterias are bound to
+	 * the queries of this repository, {@link InListPolicy#DEFAULT padded and
+	 * split} by default.
+	 * 
+	 * @param inListPolicy
+	 *            The policy to be used, or <code>null</code> to bind every list
+	 *            as it is.
+	 * @return This repository.
+	 */
+	public JpaRepository<T> withInListPolicy(InListPolicy inListPolicy) {
+		this.inListPolicy = inListPolicy == null ? InListPolicy.UNCHANGED : inListPolicy;
+		return this;
+	}
+
 	@Override
 	public void create(T entity) {
+		final long start = System.nanoTime();
 		em.persist(entity);
+		record(RepositoryOperation.CREATE, null, start, 1);
 	}
 
 	@Override
 	public T retrieve(Serializable id) {
-		return em.find(this.entityType, id);
+		final long start = System.nanoTime();
+		final T entity = em.find(this.entityType, id);
+		record(RepositoryOperation.RETRIEVE, null, start, entity == null ? 0 : 1);
+		return entity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * JPA offers no portable way of telling whether an entity is already
+	 * managed without loading it, so only the entities held by the
+	 * second-level cache are retrieved one by one, without any SQL. The other
+	 * entities are loaded by a query per {@link #ID_CHUNK_SIZE} identifiers;
+	 * entities already managed are still returned as the same instance.
+	 * Numeric identifiers are converted to the type of the identifier
+	 * attribute, so they can be given as any {@link Number}, and are keyed by
+	 * the identifiers given.
+	 * </p>
+	 */
+	@Override
+	public Map<Serializable, T> retrieveAll(Collection<? extends Serializable> ids) {
+		if (ids == null || ids.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		final long start = System.nanoTime();
+		final Cache cache = this.em.getEntityManagerFactory().getCache();
+		final Class<?> idType = boxed(this.em.getMetamodel().entity(entityType).getIdType().getJavaType());
+		final Map<Object, T> found = new HashMap<>();
+		final List<Object> pending = new ArrayList<>();
+		final Set<Object> convertedIds = new LinkedHashSet<>();
+		for (Serializable id : ids) {
+			convertedIds.add(convert(id, idType));
+		}
+		for (Object id : convertedIds) {
+			if (cache != null && cache.contains(entityType, id)) {
+				final T entity = this.em.find(entityType, id);
+				if (entity != null) {
+					found.put(id, entity);
+				}
+			} else {
+				pending.add(id);
+			}
+		}
+
+		if (!pending.isEmpty()) {
+			final PersistenceUnitUtil persistenceUnitUtil = this.em.getEntityManagerFactory().getPersistenceUnitUtil();
+			final TypedQuery<T> query = this.em.createQuery(
+					"SELECT e FROM " + getEntityName() + " e WHERE e." + getIdAttribute() + " IN :ids", entityType);
+			for (int from = 0; from < pending.size(); from += ID_CHUNK_SIZE) {
+				query.setParameter("ids", pending.subList(from, Math.min(from + ID_CHUNK_SIZE, pending.size())));
+				for (T entity : query.getResultList()) {
+					found.put(persistenceUnitUtil.getIdentifier(entity), entity);
+				}
+			}
+		}
+
+		final Map<Serializable, T> entities = new LinkedHashMap<>();
+		for (Serializable id : ids) {
+			final T entity = found.get(convert(id, idType));
+			if (entity != null) {
+				entities.put(id, entity);
+			}
+		}
+		record(RepositoryOperation.RETRIEVE, null, start, entities.size());
+		return entities;
 	}
 
 	@Override
 	public T update(T t) {
-		return em.merge(t);
+		final long start = System.nanoTime();
+		final T entity = em.merge(t);
+		record(RepositoryOperation.UPDATE, null, start, 1);
+		return entity;
 	}
 
 	@Override
 	public T delete(Serializable id) {
-		T entity = this.retrieve(id);
+		final long start = System.nanoTime();
+		T entity = em.find(this.entityType, id);
 		em.remove(entity);
+		record(RepositoryOperation.DELETE, null, start, 1);
 		return entity;
 	}
 
 	@Override
 	public void delete(T entity) {
+		final long start = System.nanoTime();
 		entity = em.merge(entity);
 		em.remove(entity);
+		record(RepositoryOperation.DELETE, null, start, 1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The entity is removed by a bulk <code>DELETE</code> statement by
+	 * primary key, as described on {@link #deleteWhere(SearchCriteria...)}.
+	 * </p>
+	 */
+	@Override
+	public boolean deleteById(Serializable id) {
+		return deleteByIds(Collections.singleton(id)) > 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The entities are removed by a bulk <code>DELETE</code> statement per
+	 * {@link #ID_CHUNK_SIZE} identifiers, as described on
+	 * {@link #deleteWhere(SearchCriteria...)}.
+	 * </p>
+	 */
+	@Override
+	public int deleteByIds(Collection<? extends Serializable> ids) {
+		if (ids == null || ids.isEmpty()) {
+			return 0;
+		}
+		final long start = System.nanoTime();
+		final int deleted = executeBulk(deleteByIdsStatement(), new ArrayList<Object>(ids),
+				Collections.<String, Object>emptyMap());
+		record(RepositoryOperation.DELETE, null, start, deleted);
+		return deleted;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Each batch is flushed and then the {@link EntityManager} is cleared.
+	 * The inserts of a batch are sent in JDBC batches only if the persistence
+	 * provider is configured to do so, e.g. setting
+	 * <code>hibernate.jdbc.batch_size</code> (ideally to the same
+	 * <code>batchSize</code>) and <code>hibernate.order_inserts</code>.
+	 * </p>
+	 */
+	@Override
+	public BatchReport createAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		return writeAll(entities, batchSize, RepositoryOperation.CREATE, new EntityWriter<T>() {
+			@Override
+			public void write(T entity) {
+				em.persist(entity);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Batches are written as described on {@link #createAll(Collection, int)}.
+	 * </p>
+	 */
+	@Override
+	public BatchReport updateAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		return writeAll(entities, batchSize, RepositoryOperation.UPDATE, new EntityWriter<T>() {
+			@Override
+			public void write(T entity) {
+				em.merge(entity);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Batches are written as described on {@link #createAll(Collection, int)}.
+	 * </p>
+	 */
+	@Override
+	public BatchReport deleteAll(Collection<T> entities, int batchSize) throws IllegalArgumentException {
+		return writeAll(entities, batchSize, RepositoryOperation.DELETE, new EntityWriter<T>() {
+			@Override
+			public void write(T entity) {
+				em.remove(em.contains(entity) ? entity : em.merge(entity));
+			}
+		});
+	}
+
+	private interface EntityWriter<T> {
+		void write(T entity);
+	}
+
+	private BatchReport writeAll(final Collection<T> entities, final int batchSize,
+			final RepositoryOperation operation, final EntityWriter<T> writer) throws IllegalArgumentException {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be a positive number");
+		}
+		final BatchReport report = new BatchReport();
+		final Iterator<T> iterator = entities.iterator();
+		while (iterator.hasNext()) {
+			final long start = System.nanoTime();
+			int written = 0;
+			while (written < batchSize && iterator.hasNext()) {
+				writer.write(iterator.next());
+				written++;
+			}
+			em.flush();
+			em.clear();
+			report.addBatch(written, System.nanoTime() - start);
+		}
+		if (metrics != null) {
+			metrics.record(entityType, operation, null, report.getElapsedNanos(), report.getEntitiesWritten());
+		}
+		return report;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * JPA 2.0 criteria queries can't express bulk statements, so the
+	 * identifiers of the matching entities are selected first, through the
+	 * same translation used by searches, and then removed by a bulk
+	 * <code>DELETE</code> statement per {@link #ID_CHUNK_SIZE} identifiers.
+	 * Bulk statements bypass the persistence context, so pending changes are
+	 * flushed beforehand and {@link #invalidatePersistenceContext(Collection)}
+	 * is called afterwards with the identifiers selected.
+	 * </p>
+	 * <p>
+	 * The selection and the bulk statements aren't atomic: unless the
+	 * transaction isolation prevents it, entities that start matching the
+	 * criterias in between, e.g. inserted by another transaction, are left
+	 * untouched, and entities selected that stop matching them are still
+	 * affected.
+	 * </p>
+	 */
+	@Override
+	public int deleteWhere(SearchCriteria... searchCriterias) throws IllegalArgumentException {
+		final long start = System.nanoTime();
+		final List<Object> ids = findIds(searchCriterias);
+		final int deleted = executeBulk(deleteByIdsStatement(), ids, Collections.<String, Object>emptyMap());
+		record(RepositoryOperation.DELETE, null, start, deleted);
+		return deleted;
+	}
+
+	private String deleteByIdsStatement() {
+		return "DELETE FROM " + getEntityName() + " e WHERE e." + getIdAttribute() + " IN :ids";
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Entities are changed by bulk <code>UPDATE</code> statements, as
+	 * described on {@link #deleteWhere(SearchCriteria...)}.
+	 * </p>
+	 */
+	@Override
+	public int updateWhere(SearchCriteria[] searchCriterias, Map<String, Object> assignments)
+			throws IllegalArgumentException {
+		if (assignments == null || assignments.isEmpty()) {
+			throw new IllegalArgumentException("At least one attribute must be assigned");
+		}
+		final EntityType<T> model = this.em.getMetamodel().entity(entityType);
+		final StringBuilder statement = new StringBuilder("UPDATE ").append(getEntityName()).append(" e SET ");
+		final Map<String, Object> parameters = new HashMap<>();
+		int assigned = 0;
+		for (Map.Entry<String, Object> assignment : assignments.entrySet()) {
+			final String attribute = model.getAttribute(assignment.getKey()).getName();
+			if (assigned++ > 0) {
+				statement.append(", ");
+			}
+			statement.append("e.").append(attribute).append(" = ");
+			if (assignment.getValue() == null) {
+				statement.append("NULL");
+			} else {
+				final String parameter = "value" + parameters.size();
+				statement.append(':').append(parameter);
+				parameters.put(parameter, assignment.getValue());
+			}
+		}
+		final long start = System.nanoTime();
+		final List<Object> ids = findIds(searchCriterias);
+		statement.append(" WHERE e.").append(getIdAttribute()).append(" IN :ids");
+		final int updated = executeBulk(statement.toString(), ids, parameters);
+		record(RepositoryOperation.UPDATE, null, start, updated);
+		return updated;
+	}
+
+	/**
+	 * Called after bulk statements changed or removed the entities identified
+	 * by <code>ids</code>, whose state in the persistence context and in the
+	 * second-level cache is no longer accurate. By default, evicts the
+	 * entities from the second-level cache and detaches the instances of
+	 * them held by the {@link EntityManager}, leaving any other managed
+	 * entity untouched. Subclasses may override it to keep the persistence
+	 * context, e.g. refreshing the entities they hold instead.
+	 * <p>
+	 * JPA can't tell whether an entity is managed without looking it up, so
+	 * the persistence context is inspected directly on Hibernate. On other
+	 * providers, up to {@link #DETACH_BY_REFERENCE_LIMIT} entities are
+	 * detached through {@link EntityManager#getReference references}, which
+	 * providers without lazy references resolve by a query each, and the
+	 * {@link EntityManager} is cleared above it.
+	 * </p>
+	 * 
+	 * @param ids
+	 *            The identifiers of the entities affected.
+	 */
+	protected void invalidatePersistenceContext(Collection<?> ids) {
+		final Cache cache = this.em.getEntityManagerFactory().getCache();
+		if (cache != null) {
+			for (Object id : ids) {
+				cache.evict(entityType, id);
+			}
+		}
+		if (HibernatePersistenceContexts.isHibernate(this.em)) {
+			HibernatePersistenceContexts.detach(this.em, entityType, ids);
+		} else if (ids.size() > DETACH_BY_REFERENCE_LIMIT) {
+			this.em.clear();
+		} else {
+			for (Object id : ids) {
+				try {
+					// the managed instance, or an uninitialized reference to it
+					this.em.detach(this.em.getReference(entityType, id));
+				} catch (EntityNotFoundException e) {
+					// providers without references look the entity up, so
+					// it's neither managed nor stored anymore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The identifiers of the entities matching the criterias.
+	 * @throws IllegalArgumentException
+	 *             If no criteria is given.
+	 */
+	private List<Object> findIds(SearchCriteria[] searchCriterias) throws IllegalArgumentException {
+		if (searchCriterias == null || searchCriterias.length == 0) {
+			throw new IllegalArgumentException("At least one search criteria must be given");
+		}
+		searchCriterias = SearchCriteriaOptimizer.optimize(searchCriterias);
+		if (SearchCriteriaOptimizer.matchesNothing(searchCriterias)) {
+			return Collections.emptyList();
+		}
+		searchCriterias = this.inListPolicy.apply(searchCriterias);
+		final CriteriaBuilder criteriaBuilder = this.em.getCriteriaBuilder();
+		final QueryParameters parameters = new QueryParameters(criteriaBuilder);
+		final CriteriaQuery<Object> idQuery = criteriaBuilder.createQuery(Object.class);
+		final Root<T> fromEntity = idQuery.from(entityType);
+		final PathResolver paths = new PathResolver(fromEntity);
+		idQuery.select(paths.get(getIdAttribute()));
+		final List<Object> values = new ArrayList<>();
+		if (searchCriterias != null) {
+			idQuery.where(SearchCriteriaParser.parse(searchCriterias, criteriaBuilder, paths, parameters));
+			SearchCriteriaParser.describe(searchCriterias, new StringBuilder(), values);
+		}
+		return new QueryPlan<Object>(idQuery, null, parameters.getExpressions(), 0, false).createDataQuery(this.em, values)
+				.getResultList();
+	}
+
+	/**
+	 * Executes a bulk statement restricted to the entities identified by the
+	 * <code>ids</code> parameter, once per chunk of identifiers.
+	 * 
+	 * @return The number of entities affected.
+	 */
+	private int executeBulk(final String statement, final List<?> ids, final Map<String, Object> parameters) {
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		this.em.flush();
+		int affected = 0;
+		for (int from = 0; from < ids.size(); from += ID_CHUNK_SIZE) {
+			final Query query = this.em.createQuery(statement);
+			for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+				query.setParameter(parameter.getKey(), parameter.getValue());
+			}
+			query.setParameter("ids", ids.subList(from, Math.min(from + ID_CHUNK_SIZE, ids.size())));
+			affected += query.executeUpdate();
+		}
+		invalidatePersistenceContext(ids);
+		return affected;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The search criterias are {@link SearchCriteriaOptimizer normalized}
+	 * first, and criterias that can't match any entity return an empty result
+	 * without querying the database.
+	 * </p>
+	 */
 	@Override
 	public SearchResult<T> search(Search searchDetails) {
+		return search(searchDetails, entityType);
+	}
+
+	/**
+	 * Performs the search like {@link #search(Search)}, but retrieves the
+	 * attributes selected by the search as projections, so the entities found
+	 * are neither instantiated nor managed by the persistence context. Each
+	 * entity found is projected into:
+	 * <ul>
+	 * <li>a {@link Tuple}, if <code>projectionType</code> is
+	 * <code>Tuple</code>, whose elements are aliased by their attribute
+	 * paths;</li>
+	 * <li>the value of the attribute, if a single attribute of a type
+	 * assignable to <code>projectionType</code> is selected;</li>
+	 * <li>otherwise, a new instance of <code>projectionType</code>, built by
+	 * its constructor taking the selected attributes in order.</li>
+	 * </ul>
+	 * 
+	 * @param searchDetails
+	 *            The criterias of the search, selecting at least one
+	 *            attribute.
+	 * @param projectionType
+	 *            The type of the projections.
+	 * @return The projections of the entities found.
+	 * @throws IllegalArgumentException
+	 *             If the search selects no attributes, or is keyset paginated,
+	 *             as the sort key of the next page is read from the entities.
+	 */
+	public <P> SearchResult<P> searchProjection(final Search searchDetails, final Class<P> projectionType)
+			throws IllegalArgumentException {
+		if (searchDetails == null || searchDetails.getAttributes() == null) {
+			throw new IllegalArgumentException("Projections require the search to select attributes");
+		}
+		if (searchDetails.isKeysetPaginated()) {
+			throw new IllegalArgumentException("Projections can't be keyset paginated");
+		}
+		return search(searchDetails, projectionType);
+	}
+
+	/**
+	 * Retrieves the identifiers of the entities matching the search, within
+	 * its page when paginated, without counting them, and without
+	 * instantiating any entity. Any attribute selected by the search is
+	 * ignored.
+	 * 
+	 * @return The identifiers found, in the order of the search.
+	 * @throws IllegalStateException
+	 *             If the entity isn't identified by a single integral
+	 *             attribute.
+	 */
+	public long[] searchIds(final Search searchDetails) throws IllegalStateException {
+		final String idAttribute = getIdAttribute();
+		final Class<?> idType = this.em.getMetamodel().entity(entityType).getIdType().getJavaType();
+		if (!INTEGRAL_TYPES.contains(boxed(idType))) {
+			throw new IllegalStateException(entityType.getName() + " has no integral identifier attribute");
+		}
+		final Search idSearch = searchDetails == null ? SearchBuilder.selectAttributes(idAttribute).build()
+				: searchDetails.withAttributes(new String[] { idAttribute });
+		final List<Number> found = fetch(idSearch, Number.class);
+		final long[] ids = new long[found.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = found.get(i).longValue();
+		}
+		return ids;
+	}
+
+	private <R> SearchResult<R> search(Search searchDetails, final Class<R> resultType) {
+		searchDetails = SearchCriteriaOptimizer.optimize(searchDetails);
+		if (searchDetails != null && SearchCriteriaOptimizer.matchesNothing(searchDetails.getSearchCriterias())) {
+			final SearchResult<R> result = emptyResult(searchDetails);
+			if (searchDetails.getFacetPaths() == null) {
+				return result;
+			}
+			final Map<String, Map<Object, Long>> facets = new LinkedHashMap<>();
+			for (String facetPath : searchDetails.getFacetPaths()) {
+				facets.put(facetPath, Collections.<Object, Long>emptyMap());
+			}
+			return result.withFacets(facets);
+		}
+		searchDetails = this.inListPolicy.apply(searchDetails);
+		final SearchShape shape = shapeOf(searchDetails, resultType);
+		final QueryPlan<R> plan = getQueryPlan(searchDetails, shape, resultType);
+		final Map<String, Future<Map<Object, Long>>> facetsCounting = countFacetsAsync(searchDetails);
+		
+		try {
+			// Apply pagination
+			final SearchResult<R> result;
+			if (searchDetails != null && searchDetails.getMaxResults() != null) {
+				result = searchPage(searchDetails, plan, shape);
+			} else {
+				result = new SearchResult<R>(fetchData(plan, shape, optionsOf(searchDetails), 0, null));
+			}
+			if (searchDetails == null || searchDetails.getFacetPaths() == null) {
+				return result;
+			}
+			return result.withFacets(countFacets(searchDetails, facetsCounting));
+		} catch (RuntimeException e) {
+			if (facetsCounting != null) {
+				for (Future<Map<Object, Long>> facetCounting : facetsCounting.values()) {
+					facetCounting.cancel(true);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Counts the values of each facet of the search by a grouped aggregation
+	 * of the entities matching it, one facet per query, as JPA queries can't
+	 * be combined by a <code>UNION</code>. Facets being counted in parallel
+	 * are awaited instead.
+	 */
+	private Map<String, Map<Object, Long>> countFacets(final Search searchDetails,
+			final Map<String, Future<Map<Object, Long>>> facetsCounting) {
+		final Map<String, Map<Object, Long>> facets = new LinkedHashMap<>();
+		for (String facetPath : searchDetails.getFacetPaths()) {
+			if (facetsCounting != null) {
+				facets.put(facetPath, awaitFacet(facetsCounting.get(facetPath)));
+			} else {
+				facets.put(facetPath,
+						countFacet(facetAggregation(searchDetails, facetPath), searchDetails.getSearchCriterias()));
+			}
+		}
+		return facets;
+	}
+
+	/**
+	 * Starts counting each facet of the search on another thread and entity
+	 * manager, if facets are counted in parallel.
+	 * 
+	 * @return The facets being counted, by path, or <code>null</code> if they
+	 *         should be counted on this thread.
+	 * @throws IllegalStateException
+	 *             If no entity manager factory was given to this repository.
+	 */
+	private Map<String, Future<Map<Object, Long>>> countFacetsAsync(final Search searchDetails)
+			throws IllegalStateException {
+		if (!this.parallelFacets || searchDetails == null || searchDetails.getFacetPaths() == null) {
+			return null;
+		}
+		if (this.entityManagerFactory == null) {
+			throw new IllegalStateException("Parallel facets require an EntityManagerFactory");
+		}
+		final Map<String, Future<Map<Object, Long>>> facetsCounting = new LinkedHashMap<>();
+		for (String facetPath : searchDetails.getFacetPaths()) {
+			final Aggregation aggregation = facetAggregation(searchDetails, facetPath);
+			final SearchCriteria[] searchCriterias = searchDetails.getSearchCriterias();
+			facetsCounting.put(facetPath, getExecutor().submit(new Callable<Map<Object, Long>>() {
+				@Override
+				public Map<Object, Long> call() throws Exception {
+					final EntityManager facetEntityManager = entityManagerFactory.createEntityManager();
+					try {
+						return withEntityManager(facetEntityManager).countFacet(aggregation, searchCriterias);
+					} finally {
+						facetEntityManager.close();
+					}
+				}
+			}));
+		}
+		return facetsCounting;
+	}
+
+	/**
+	 * @return The aggregation counting the values of a facet. The filtering
+	 *         criterias of the search, already optimized, are given apart.
+	 */
+	private static Aggregation facetAggregation(final Search searchDetails, final String facetPath) {
+		final AggregationBuilder builder = AggregationBuilder.groupBy(facetPath).count(FACET_COUNT_ALIAS)
+				.sortBy(SortingCriteria.DESC(FACET_COUNT_ALIAS)).sortBy(SortingCriteria.ASC(facetPath));
+		if (searchDetails.getFacetLimit() != null) {
+			builder.limit(searchDetails.getFacetLimit());
+		}
+		return builder.build();
+	}
+
+	private Map<Object, Long> countFacet(final Aggregation aggregation, final SearchCriteria[] searchCriterias) {
+		final String facetPath = aggregation.getGroupByPaths()[0];
+		final Map<Object, Long> values = new LinkedHashMap<>();
+		for (Map<String, Object> group : aggregate(aggregation, searchCriterias, null)) {
+			values.put(group.get(facetPath), ((Number) group.get(FACET_COUNT_ALIAS)).longValue());
+		}
+		return Collections.unmodifiableMap(values);
+	}
+
+	private static Map<Object, Long> awaitFacet(final Future<Map<Object, Long>> facetCounting) {
+		try {
+			return facetCounting.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("The facet query failed", e.getCause());
+		} catch (InterruptedException e) {
+			facetCounting.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the facet query", e);
+		}
+	}
+	
+	private <R> SearchResult<R> emptyResult(final Search searchDetails) {
+		if (searchDetails.getMaxResults() == null) {
+			return new SearchResult<R>(new ArrayList<R>());
+		}
+		final long itemsFound = searchDetails.getCountPolicy() == CountPolicy.NONE ? SearchResult.UNKNOWN_ITEMS_COUNT
+				: 0;
+		return new SearchResult<R>(new ArrayList<R>(), itemsFound, false, searchDetails.getMaxResults(),
+				searchDetails.getPageNumber(), false, null);
+	}
+	
+	private <R> SearchResult<R> searchPage(final Search searchDetails, final QueryPlan<R> plan,
+			final SearchShape shape) {
+		final CountPolicy countPolicy = searchDetails.getCountPolicy();
+		final int maxResults = searchDetails.getMaxResults();
+		final int firstResult = (searchDetails.getPageNumber() - 1) * maxResults;
+		// Keyset pages always start at the first result, but past an unknown number of entities
+		final boolean offsetKnown = !searchDetails.isKeysetPaginated()
+				|| searchDetails.getAfterSortKeyValues().length == 0;
+		// Counting in parallel, the page can't wait for the count to know whether there's a next page
+		final long countDeadline = System.nanoTime() + this.countTimeoutNanos;
+		final Future<Long> parallelCount = countPolicy == CountPolicy.EXACT && this.countTimeoutNanos > 0
+				? countAsync(plan, shape, searchDetails.getOptions()) : null;
+		// Looking one entity ahead tells whether there's a next page without counting
+		final boolean lookAhead = countPolicy != CountPolicy.EXACT || !offsetKnown || parallelCount != null;
+		
+		List<R> data = fetchPageData(searchDetails, plan, shape, firstResult,
+				lookAhead ? maxResults + 1 : maxResults);
+		boolean nextPage = false;
+		if (lookAhead && data.size() > maxResults) {
+			nextPage = true;
+			data = new ArrayList<R>(data.subList(0, maxResults));
+		}
+		
+		// A short last page tells the total, unless it's past the end
+		final boolean lastPage = lookAhead ? !nextPage : data.size() < maxResults;
+		long itemsFound = SearchResult.UNKNOWN_ITEMS_COUNT;
+		boolean itemsCountEstimated = false;
+		if (countPolicy != CountPolicy.NONE && offsetKnown && lastPage && (!data.isEmpty() || firstResult == 0)) {
+			itemsFound = firstResult + data.size();
+			if (parallelCount != null) {
+				parallelCount.cancel(true);
+			}
+		} else if (parallelCount != null) {
+			itemsFound = awaitCount(parallelCount, countDeadline);
+		} else if (countPolicy == CountPolicy.ESTIMATE) {
+			final Long estimate = itemsCountEstimator == null ? null
+					: itemsCountEstimator.estimate(this.em, entityType, searchDetails);
+			if (estimate != null) {
+				itemsFound = estimate;
+				itemsCountEstimated = true;
+			} else {
+				itemsFound = countItems(plan, shape, searchDetails.getOptions());
+			}
+		} else if (countPolicy == CountPolicy.EXACT) {
+			itemsFound = countItems(plan, shape, searchDetails.getOptions());
+			if (!lookAhead) {
+				nextPage = firstResult + data.size() < itemsFound;
+			}
+		}
+		
+		Object[] continuationKey = null;
+		if (searchDetails.isKeysetPaginated() && nextPage) {
+			continuationKey = KeysetPagination.sortKeyOf(data.get(data.size() - 1), entityType,
+					searchDetails.getSortingCriterias(), this.em.getMetamodel());
+		}
+		return new SearchResult<R>(data, itemsFound, itemsCountEstimated, maxResults, searchDetails.getPageNumber(),
+				nextPage, continuationKey);
+	}
+
+	/**
+	 * Performs the search on another thread, so several independent searches
+	 * can run at the same time. Each search uses its own {@link EntityManager},
+	 * created from the {@link #withEntityManagerFactory factory} of this
+	 * repository and closed once the search completes, so the entities found
+	 * are detached. The other settings of this repository, like its query plan
+	 * cache and metrics, apply to the search as well, except for parallel
+	 * counts and facets, run on the thread of the search instead.
+	 * 
+	 * @param searchDetails
+	 *            The criterias of the search, as on {@link #search(Search)}.
+	 * @return The result of the search, once completed.
+	 * @throws IllegalStateException
+	 *             If no entity manager factory was given to this repository.
+	 */
+	public Future<SearchResult<T>> searchAsync(final Search searchDetails) throws IllegalStateException {
+		if (this.entityManagerFactory == null) {
+			throw new IllegalStateException("Asynchronous searches require an EntityManagerFactory");
+		}
+		return getExecutor().submit(new Callable<SearchResult<T>>() {
+			@Override
+			public SearchResult<T> call() throws Exception {
+				final EntityManager searchEntityManager = entityManagerFactory.createEntityManager();
+				try {
+					final JpaRepository<T> repository = withEntityManager(searchEntityManager);
+					// Counts and facets queued behind searches holding every thread of the executor
+					// would only run once too late, or never
+					repository.countTimeoutNanos = 0;
+					repository.parallelFacets = false;
+					return repository.search(searchDetails);
+				} finally {
+					searchEntityManager.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return A copy of this repository, with the same settings, working on
+	 *         <code>entityManager</code>.
+	 */
+	JpaRepository<T> withEntityManager(final EntityManager entityManager) {
+		final JpaRepository<T> repository = new JpaRepository<T>(entityManager, entityType);
+		repository.queryPlanCache = this.queryPlanCache;
+		repository.itemsCountEstimator = this.itemsCountEstimator;
+		repository.metrics = this.metrics;
+		repository.entityManagerFactory = this.entityManagerFactory;
+		repository.executor = this.executor;
+		repository.countTimeoutNanos = this.countTimeoutNanos;
+		repository.parallelFacets = this.parallelFacets;
+		repository.inListPolicy = this.inListPolicy;
+		return repository;
+	}
+
+	private ExecutorService getExecutor() {
+		return this.executor == null ? SearchExecutors.shared() : this.executor;
+	}
+
+	/**
+	 * Computes the aggregation in the database, by a single aggregate query,
+	 * instead of retrieving the entities aggregated. Aggregations sharing the
+	 * same structure reuse the same query plan, as searches do.
+	 * 
+	 * @param aggregation
+	 *            The criterias of the aggregation.
+	 * @return A row per group found, in order, holding the value of each
+	 *         group-by path and aggregate alias, by path or alias.
+	 * @throws IllegalArgumentException
+	 *             If no aggregation is given, or a path doesn't exist.
+	 */
+	public List<Map<String, Object>> aggregate(final Aggregation aggregation) throws IllegalArgumentException {
+		if (aggregation == null) {
+			throw new IllegalArgumentException("The aggregation must be a not null value");
+		}
+		return aggregate(aggregation,
+				this.inListPolicy.apply(SearchCriteriaOptimizer.optimize(aggregation.getSearchCriterias())),
+				this.inListPolicy.apply(SearchCriteriaOptimizer.optimize(aggregation.getHavingCriterias())));
+	}
+
+	/**
+	 * Computes the aggregation with the given criterias, already optimized
+	 * and bound by the {@link InListPolicy} of this repository, in place of
+	 * its own.
+	 */
+	private List<Map<String, Object>> aggregate(final Aggregation aggregation, final SearchCriteria[] searchCriterias,
+			final SearchCriteria[] havingCriterias) {
+		final StringBuilder shape = new StringBuilder("AGGREGATE(");
+		for (String path : aggregation.getGroupByPaths()) {
+			shape.append(path).append(',');
+		}
+		for (Aggregation.Aggregate aggregate : aggregation.getAggregates()) {
+			shape.append(aggregate.getFunction()).append('(').append(aggregate.getAttributePath()).append(')')
+					.append(aggregate.getAlias()).append(',');
+		}
+		shape.append(')');
+		final List<Object> values = new ArrayList<>();
+		if (searchCriterias != null) {
+			shape.append("WHERE(");
+			SearchCriteriaParser.describe(searchCriterias, shape, values);
+			shape.append(')');
+		}
+		if (havingCriterias != null) {
+			shape.append("HAVING(");
+			SearchCriteriaParser.describe(havingCriterias, shape, values);
+			shape.append(')');
+		}
+		if (aggregation.getSortingCriterias() != null) {
+			shape.append("ORDER(");
+			for (SortingCriteria sorting : aggregation.getSortingCriterias()) {
+				shape.append(sorting.getAttributePath()).append(sorting.isDesc() ? " DESC," : " ASC,");
+			}
+			shape.append(')');
+		}
+		final String key = shape.toString();
+
+		QueryPlan<Tuple> plan = this.queryPlanCache == null ? null : this.queryPlanCache.<Tuple>get(entityType, key);
+		if (plan == null) {
+			final long start = System.nanoTime();
+			plan = buildAggregationPlan(aggregation, searchCriterias, havingCriterias);
+			record(RepositoryOperation.TRANSLATION, key, start, 0);
+			if (this.queryPlanCache != null) {
+				this.queryPlanCache.put(entityType, key, plan.prepare(this.em));
+			}
+		}
+
+		final long start = System.nanoTime();
+		final TypedQuery<Tuple> query = plan.createDataQuery(this.em, values);
+		if (aggregation.getMaxResults() != null) {
+			query.setMaxResults(aggregation.getMaxResults());
+		}
+		final List<Map<String, Object>> groups = new ArrayList<>();
+		for (Tuple tuple : query.getResultList()) {
+			final Map<String, Object> group = new LinkedHashMap<>();
+			for (String path : aggregation.getGroupByPaths()) {
+				group.put(path, tuple.get(path));
+			}
+			for (Aggregation.Aggregate aggregate : aggregation.getAggregates()) {
+				group.put(aggregate.getAlias(), tuple.get(aggregate.getAlias()));
+			}
+			groups.add(group);
+		}
+		record(RepositoryOperation.AGGREGATE, key, start, groups.size());
+		return groups;
+	}
+
+	/**
+	 * Builds the aggregate query. The filtering criterias are translated
+	 * before the aggregates get their aliases, so they always refer to
+	 * attributes, while the having and sorting criterias may refer to either.
+	 */
+	private QueryPlan<Tuple> buildAggregationPlan(final Aggregation aggregation,
+			final SearchCriteria[] searchCriterias, final SearchCriteria[] havingCriterias) {
+		final CriteriaBuilder criteriaBuilder = this.em.getCriteriaBuilder();
+		final QueryParameters parameters = new QueryParameters(criteriaBuilder);
+		final CriteriaQuery<Tuple> aggregateQuery = criteriaBuilder.createTupleQuery();
+		final PathResolver paths = new PathResolver(aggregateQuery.from(entityType));
+		if (searchCriterias != null) {
+			aggregateQuery.where(restrict(aggregateQuery, searchCriterias, criteriaBuilder, paths, parameters));
+		}
+
+		final List<Selection<?>> selections = new ArrayList<>();
+		final List<Expression<?>> groups = new ArrayList<>();
+		for (String path : aggregation.getGroupByPaths()) {
+			final Expression<?> group = paths.getOuter(path);
+			groups.add(group);
+			selections.add(group.alias(path));
+			paths.alias(path, group);
+		}
+		for (Aggregation.Aggregate aggregate : aggregation.getAggregates()) {
+			final Expression<?> value = aggregateOf(aggregate, criteriaBuilder, paths);
+			selections.add(value.alias(aggregate.getAlias()));
+			paths.alias(aggregate.getAlias(), value);
+		}
+		aggregateQuery.multiselect(selections);
+		if (!groups.isEmpty()) {
+			aggregateQuery.groupBy(groups);
+		}
+		if (havingCriterias != null) {
+			aggregateQuery.having(SearchCriteriaParser.parse(havingCriterias, criteriaBuilder, paths, parameters));
+		}
+		if (aggregation.getSortingCriterias() != null) {
+			aggregateQuery.orderBy(
+					SortingCriteriaParser.parse(aggregation.getSortingCriterias(), criteriaBuilder, paths));
+		}
+		return new QueryPlan<Tuple>(aggregateQuery, null, parameters.getExpressions(), 0, false);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Expression<?> aggregateOf(final Aggregation.Aggregate aggregate,
+			final CriteriaBuilder criteriaBuilder, final PathResolver paths) {
+		final String attributePath = aggregate.getAttributePath();
+		switch (aggregate.getFunction()) {
+		case COUNT:
+			if (attributePath != null) {
+				return criteriaBuilder.count(paths.getOuter(attributePath));
+			}
+			// Collection joins repeat the entity once per matching element
+			return paths.isCollectionJoined() ? criteriaBuilder.countDistinct(paths.getRoot())
+					: criteriaBuilder.count(paths.getRoot());
+		case SUM:
+			return criteriaBuilder.sum(paths.<Number>getOuter(attributePath));
+		case AVG:
+			return criteriaBuilder.avg(paths.<Number>getOuter(attributePath));
+		case MIN:
+			return criteriaBuilder.least(paths.<Comparable>getOuter(attributePath));
+		default:
+			return criteriaBuilder.greatest(paths.<Comparable>getOuter(attributePath));
+		}
+	}
+
+	/**
+	 * Retrieves the entities matching the search in chunks of
+	 * <code>fetchSize</code> entities, fetched while iterating. When the
+	 * entities have a single identifier attribute, the chunks are located by
+	 * keyset pagination, sorting by the search sorting criterias followed by
+	 * the identifier, unless any sorting attribute is nullable, as null values
+	 * can't be sought. Chunks are located by their page number otherwise.
+	 * Entities of a chunk are detached from the
+	 * {@link EntityManager} once the next chunk is fetched, so only one chunk
+	 * at a time is kept by the persistence context.
+	 */
+	@Override
+	public Iterator<T> searchIterator(Search searchDetails, int fetchSize) throws IllegalArgumentException {
+		if (fetchSize <= 0) {
+			throw new IllegalArgumentException("Fetch size must be a positive number");
+		}
+		return new JpaSearchIterator<T>(this, searchDetails, fetchSize);
+	}
+
+	/**
+	 * Retrieves the entities of a single page of the search, without counting
+	 * all the entities found.
+	 */
+	List<T> fetchPage(Search searchDetails) {
+		return fetch(searchDetails, entityType);
+	}
+
+	/**
+	 * Retrieves the results of the search, within its page when paginated,
+	 * without counting all the entities found.
+	 */
+	private <R> List<R> fetch(Search searchDetails, final Class<R> resultType) {
+		searchDetails = SearchCriteriaOptimizer.optimize(searchDetails);
+		if (SearchCriteriaOptimizer.matchesNothing(searchDetails.getSearchCriterias())) {
+			return new ArrayList<R>();
+		}
+		searchDetails = this.inListPolicy.apply(searchDetails);
+		final SearchShape shape = shapeOf(searchDetails, resultType);
+		final Integer maxResults = searchDetails.getMaxResults();
+		final int firstResult = maxResults == null ? 0 : (searchDetails.getPageNumber() - 1) * maxResults;
+		return fetchPageData(searchDetails, getQueryPlan(searchDetails, shape, resultType), shape, firstResult,
+				maxResults);
+	}
+
+	/**
+	 * Retrieves the results of the search within the given limits, locating
+	 * the entities by identifier first if the search is paged so.
+	 */
+	@SuppressWarnings("unchecked")
+	private <R> List<R> fetchPageData(final Search searchDetails, final QueryPlan<R> plan, final SearchShape shape,
+			final int firstResult, final Integer maxResults) {
+		if (maxResults != null && isIdFirst(searchDetails, plan)) {
+			// Only entity plans locate their entities by identifier
+			return (List<R>) fetchIdFirst(searchDetails, firstResult, maxResults);
+		}
+		return fetchData(plan, shape, searchDetails.getOptions(), firstResult, maxResults);
+	}
+
+	/**
+	 * @return Whether the entities of the page should be located by
+	 *         identifier first, according to the paging strategy of the
+	 *         search. Only searches retrieving entire entities can, and the
+	 *         automatic strategies require a single identifier attribute.
+	 */
+	private boolean isIdFirst(final Search searchDetails, final QueryPlan<?> plan) {
+		if (searchDetails.getAttributes() != null) {
+			return false;
+		}
+		final boolean singleId = this.em.getMetamodel().entity(entityType).hasSingleIdAttribute();
+		switch (searchDetails.getPagingStrategy()) {
+		case ID_FIRST:
+			return true;
+		case OFFSET:
+			return singleId && plan.isCollectionFetched();
+		default:
+			return singleId && searchDetails.getFetchPaths() != null;
+		}
+	}
+
+	/**
+	 * Retrieves the entities of a page in two queries: the first one limits
+	 * the identifiers of the entities found to the page, and the second one
+	 * loads the entities identified, along with their fetched associations.
+	 * The database limits the page by itself, even when fetching collections,
+	 * whose elements repeat the rows of their entities.
+	 */
+	private List<T> fetchIdFirst(final Search searchDetails, final int firstResult, final int maxResults) {
+		final Search idSearch = searchDetails.withAttributes(new String[] { getIdAttribute() });
+		final SearchShape idShape = shapeOf(idSearch, Object.class);
+		final List<Object> ids = fetchData(getQueryPlan(idSearch, idShape, Object.class), idShape,
+				searchDetails.getOptions(), firstResult, maxResults);
+		if (ids.isEmpty()) {
+			return new ArrayList<T>();
+		}
+
+		final long start = System.nanoTime();
+		final CriteriaBuilder criteriaBuilder = this.em.getCriteriaBuilder();
+		final QueryParameters parameters = new QueryParameters(criteriaBuilder);
+		final CriteriaQuery<T> entityQuery = criteriaBuilder.createQuery(entityType);
+		final PathResolver paths = new PathResolver(entityQuery.from(entityType));
+		if (searchDetails.getFetchPaths() != null) {
+			for (String fetchPath : searchDetails.getFetchPaths()) {
+				paths.fetch(fetchPath);
+			}
+		}
+		final SearchCriteria[] idCriterias = this.inListPolicy
+				.apply(new SearchCriteria[] { SearchCriteria.IN(getIdAttribute(), ids.toArray()) });
+		entityQuery.where(SearchCriteriaParser.parse(idCriterias, criteriaBuilder, paths, parameters));
+		final List<Object> values = new ArrayList<>();
+		SearchCriteriaParser.describe(idCriterias, new StringBuilder(), values);
+		final TypedQuery<T> query = applyOptions(
+				new QueryPlan<T>(entityQuery, null, parameters.getExpressions(), 0, false).createDataQuery(this.em,
+						values), searchDetails.getOptions());
+
+		final PersistenceUnitUtil persistenceUnitUtil = this.em.getEntityManagerFactory().getPersistenceUnitUtil();
+		final Map<Object, T> found = new HashMap<>();
+		for (T entity : query.getResultList()) {
+			found.put(persistenceUnitUtil.getIdentifier(entity), entity);
+		}
+		final List<T> entities = new ArrayList<>(ids.size());
+		for (Object id : ids) {
+			final T entity = found.get(id);
+			if (entity != null) {
+				entities.add(entity);
+			}
+		}
+		record(RepositoryOperation.RETRIEVE, null, start, entities.size());
+		return entities;
+	}
+
+	private SearchShape shapeOf(final Search searchDetails, final Class<?> resultType) {
+		final SearchShape shape = SearchShape.of(searchDetails);
+		return resultType.equals(entityType) ? shape : shape.as(resultType);
+	}
+
+	/**
+	 * @return The name of the identifier attribute of the entity.
+	 * @throws IllegalStateException
+	 *             If the entity has an {@link javax.persistence.IdClass id
+	 *             class} instead of a single identifier attribute.
+	 */
+	String getIdAttribute() throws IllegalStateException {
+		final EntityType<T> model = this.em.getMetamodel().entity(entityType);
+		if (!model.hasSingleIdAttribute()) {
+			throw new IllegalStateException(entityType.getName() + " has no single identifier attribute");
+		}
+		return model.getId(model.getIdType().getJavaType()).getName();
+	}
+
+	private String getEntityName() {
+		return this.em.getMetamodel().entity(entityType).getName();
+	}
+
+	EntityManager getEntityManager() {
+		return em;
+	}
+
+	Class<T> getEntityType() {
+		return entityType;
+	}
+
+	private <R> List<R> fetchData(final QueryPlan<R> plan, final SearchShape shape, final SearchOptions options,
+			final int firstResult, final Integer maxResults) {
+		final long start = System.nanoTime();
+		TypedQuery<R> query = applyOptions(plan.createDataQuery(this.em, shape.getValues()), options);
+		if (maxResults != null) {
+			query.setFirstResult(firstResult);
+			query.setMaxResults(maxResults);
+		}
+		List<R> data = query.getResultList();
+		if (plan.isCollectionFetched()) {
+			// Fetched collections repeat the entity once per element
+			data = new ArrayList<>(new LinkedHashSet<>(data));
+		}
+		record(RepositoryOperation.SEARCH, shape.getKey(), start, data.size());
+		return data;
+	}
+
+	private long countItems(final QueryPlan<?> plan, final SearchShape shape, final SearchOptions options) {
+		final long start = System.nanoTime();
+		final long itemsFound = applyOptions(plan.createCountQuery(this.em, shape.getValues()), options)
+				.getSingleResult();
+		record(RepositoryOperation.COUNT, shape.getKey(), start, itemsFound);
+		return itemsFound;
+	}
+
+	/**
+	 * Starts counting the entities found on another thread and entity
+	 * manager, limited to the count timeout of this repository, unless the
+	 * search has a shorter timeout.
+	 * 
+	 * @throws IllegalStateException
+	 *             If no entity manager factory was given to this repository.
+	 */
+	private Future<Long> countAsync(final QueryPlan<?> plan, final SearchShape shape, final SearchOptions options)
+			throws IllegalStateException {
+		if (this.entityManagerFactory == null) {
+			throw new IllegalStateException("Parallel counts require an EntityManagerFactory");
+		}
+		final int countTimeoutMillis = (int) Math.min(
+				Math.max(TimeUnit.NANOSECONDS.toMillis(this.countTimeoutNanos), 1), Integer.MAX_VALUE);
+		final int timeoutMillis = options.getTimeoutMillis() == null ? countTimeoutMillis
+				: Math.min(options.getTimeoutMillis(), countTimeoutMillis);
+		return getExecutor().submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				final EntityManager countEntityManager = entityManagerFactory.createEntityManager();
+				try {
+					final long start = System.nanoTime();
+					final TypedQuery<Long> query = applyOptions(
+							plan.createCountQuery(countEntityManager, shape.getValues()), options);
+					query.setHint(QUERY_TIMEOUT_HINT, timeoutMillis);
+					final long itemsFound = query.getSingleResult();
+					record(RepositoryOperation.COUNT, shape.getKey(), start, itemsFound);
+					return itemsFound;
+				} finally {
+					countEntityManager.close();
+				}
+			}
+		});
+	}
+
+	private static SearchOptions optionsOf(final Search searchDetails) {
+		return searchDetails == null ? SearchOptions.DEFAULT : searchDetails.getOptions();
+	}
+
+	/**
+	 * Applies the options of a search to one of its queries. JPA has no
+	 * portable read-only mode nor fetch size, so these are passed as the hints
+	 * of the usual providers, each ignoring the hints of the others.
+	 */
+	private static <X> TypedQuery<X> applyOptions(final TypedQuery<X> query, final SearchOptions options) {
+		if (options.isReadOnly()) {
+			query.setHint(HIBERNATE_READ_ONLY_HINT, true);
+			query.setHint(ECLIPSELINK_READ_ONLY_HINT, true);
+		}
+		if (options.getFetchSize() != null) {
+			query.setHint(HIBERNATE_FETCH_SIZE_HINT, options.getFetchSize());
+			query.setHint(ECLIPSELINK_FETCH_SIZE_HINT, options.getFetchSize());
+		}
+		if (options.getAutoFlush() != null) {
+			query.setFlushMode(options.getAutoFlush() ? FlushModeType.AUTO : FlushModeType.COMMIT);
+		}
+		if (options.getTimeoutMillis() != null) {
+			query.setHint(QUERY_TIMEOUT_HINT, options.getTimeoutMillis());
+		}
+		for (Map.Entry<String, Object> hint : options.getHints().entrySet()) {
+			query.setHint(hint.getKey(), hint.getValue());
+		}
+		return query;
+	}
+
+	/**
+	 * Waits for the parallel count until <code>deadline</code>, as given by
+	 * {@link System#nanoTime()}, so the time spent fetching the page counts
+	 * towards the count timeout.
+	 * 
+	 * @return The result of the parallel count, or
+	 *         {@link SearchResult#UNKNOWN_ITEMS_COUNT} if it timed out.
+	 */
+	private long awaitCount(final Future<Long> parallelCount, final long deadline) {
+		try {
+			return parallelCount.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			parallelCount.cancel(true);
+			return SearchResult.UNKNOWN_ITEMS_COUNT;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof QueryTimeoutException) {
+				return SearchResult.UNKNOWN_ITEMS_COUNT;
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("The count query failed", e.getCause());
+		} catch (InterruptedException e) {
+			parallelCount.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the count query", e);
+		}
+	}
+
+	private void record(final RepositoryOperation operation, final String shape, final long start, final long rows) {
+		if (metrics != null) {
+			metrics.record(entityType, operation, shape, System.nanoTime() - start, rows);
+		}
+	}
+	
+	private <R> QueryPlan<R> getQueryPlan(final Search searchDetails, final SearchShape shape,
+			final Class<R> resultType) {
+		if (this.queryPlanCache == null) {
+			return translate(searchDetails, shape, resultType);
+		}
+		QueryPlan<R> plan = this.queryPlanCache.get(entityType, shape.getKey());
+		if (plan == null) {
+			plan = translate(searchDetails, shape, resultType);
+			this.queryPlanCache.put(entityType, shape.getKey(), plan.prepare(this.em));
+		}
+		return plan;
+	}
+
+	private <R> QueryPlan<R> translate(final Search searchDetails, final SearchShape shape,
+			final Class<R> resultType) {
+		final long start = System.nanoTime();
+		final QueryPlan<R> plan = buildQueryPlan(searchDetails, resultType);
+		record(RepositoryOperation.TRANSLATION, shape.getKey(), start, 0);
+		return plan;
+	}
+	
+	private <R> QueryPlan<R> buildQueryPlan(final Search searchDetails, final Class<R> resultType) {
 		CriteriaBuilder criteriaBuilder = this.em.getCriteriaBuilder();
-		CriteriaQuery<T> criteriaQuery = criteriaBuilder.createQuery(entityType);
-		Root<T> fromEntity = criteriaQuery.from(entityType);
+		QueryParameters parameters = new QueryParameters(criteriaBuilder);
+		CriteriaQuery<R> criteriaQuery = criteriaBuilder.createQuery(resultType);
+		PathResolver paths = new PathResolver(criteriaQuery.from(entityType));
+		
+		// Restrictions first, so the outer paths reuse their joins
+		final SearchCriteria[] restrictions = KeysetPagination.restrictions(searchDetails);
+		if (restrictions != null) {
+			criteriaQuery.where(restrict(criteriaQuery, restrictions, criteriaBuilder, paths, parameters));
+		}
+		final boolean repeated = paths.isCollectionJoined();
 		
 		// Selection Attributes
 		if (searchDetails != null && searchDetails.getAttributes() != null) {
-			List<Selection<?>> selectionList = new ArrayList<>(searchDetails.getAttributes().length);
-			for (String attributeName : searchDetails.getAttributes()) {
-				selectionList.add(fromEntity.get(attributeName));
+			select(criteriaQuery, searchDetails.getAttributes(), criteriaBuilder, paths);
+		} else if (searchDetails != null && searchDetails.getFetchPaths() != null) {
+			for (String fetchPath : searchDetails.getFetchPaths()) {
+				paths.fetch(fetchPath);
 			}
-			criteriaQuery.multiselect(selectionList);
-		}
-		
-		Predicate[] restrictions = null;
-		if (searchDetails != null && searchDetails.getSearchCriterias() != null) {
-			restrictions = SearchCriteriaParser.parse(searchDetails.getSearchCriterias(), criteriaBuilder, fromEntity);
-			criteriaQuery.where(restrictions);
 		}
 		
 		if (searchDetails != null && searchDetails.getSortingCriterias() != null) {
-			criteriaQuery.orderBy(SortingCriteriaParser.parse(searchDetails.getSortingCriterias(), criteriaBuilder, fromEntity));
+			criteriaQuery.orderBy(SortingCriteriaParser.parse(searchDetails.getSortingCriterias(), criteriaBuilder, paths));
 		}
 		
-		TypedQuery<T> query = this.em.createQuery(criteriaQuery);
+		// Restrictions not moved to a subquery repeat the entity once per element
+		criteriaQuery.distinct(repeated);
 		
-		// Apply pagination
+		CriteriaQuery<Long> countQuery = null;
+		int countParameters = 0;
 		if (searchDetails != null && searchDetails.getMaxResults() != null) {
-			final long totalItensCount = getItemsCount(restrictions);
-			final int firstResult = (searchDetails.getPageNumber() - 1) * searchDetails.getMaxResults();
-			query.setFirstResult(firstResult);
-			query.setMaxResults(searchDetails.getMaxResults());
-			return new SearchResult<T>(query.getResultList(), totalItensCount, searchDetails.getMaxResults(),
-					searchDetails.getPageNumber());
+			countQuery = buildCountQuery(searchDetails, parameters);
+			countParameters = parameters.position();
+		}
+		return new QueryPlan<R>(criteriaQuery, countQuery, parameters.getExpressions(), countParameters,
+				paths.isCollectionFetched());
+	}
+
+	/**
+	 * Translates the restrictions of a query. Restrictions joining a
+	 * collection would repeat the entities once per matching element, so they
+	 * restrict the identifiers of a subquery instead, keeping a single row per
+	 * entity without a <code>DISTINCT</code>, which would collapse equal
+	 * projections and reject sorting by columns not selected. Entities without
+	 * a single identifier attribute are joined directly.
+	 */
+	@SuppressWarnings("unchecked")
+	private Predicate[] restrict(final CriteriaQuery<?> query, final SearchCriteria[] restrictions,
+			final CriteriaBuilder criteriaBuilder, final PathResolver paths, final QueryParameters parameters) {
+		final int position = parameters.position();
+		if (this.em.getMetamodel().entity(entityType).hasSingleIdAttribute()) {
+			final Subquery<Object> ids = query.subquery(Object.class);
+			final PathResolver idPaths = new PathResolver(ids.from(entityType));
+			final Predicate[] predicates = SearchCriteriaParser.parse(restrictions, criteriaBuilder, idPaths,
+					parameters);
+			if (idPaths.isCollectionJoined()) {
+				ids.select((Expression<Object>) idPaths.get(getIdAttribute())).where(predicates);
+				return new Predicate[] { paths.get(getIdAttribute()).in(ids) };
+			}
+			// The same parameters are translated again on the query itself
+			parameters.rewind(position);
+		}
+		return SearchCriteriaParser.parse(restrictions, criteriaBuilder, paths, parameters);
+	}
+
+	/**
+	 * Selects the attributes into the result type of the query: entities and
+	 * tuples take the attributes as they are, a single attribute is selected
+	 * as its own value when assignable to the result type, otherwise the
+	 * attributes are passed to a constructor of the result type.
+	 */
+	@SuppressWarnings("unchecked")
+	private <R> void select(final CriteriaQuery<R> criteriaQuery, final String[] attributes,
+			final CriteriaBuilder criteriaBuilder, final PathResolver paths) {
+		final Class<R> resultType = criteriaQuery.getResultType();
+		final Selection<?>[] selections = new Selection<?>[attributes.length];
+		for (int i = 0; i < attributes.length; i++) {
+			selections[i] = paths.getOuter(attributes[i]);
+		}
+		if (resultType.equals(entityType)) {
+			criteriaQuery.multiselect(selections);
+		} else if (resultType.equals(Tuple.class)) {
+			for (int i = 0; i < attributes.length; i++) {
+				selections[i].alias(attributes[i]);
+			}
+			criteriaQuery.multiselect(selections);
+		} else if (attributes.length == 1 && resultType.isAssignableFrom(boxed(selections[0].getJavaType()))) {
+			criteriaQuery.select((Selection<? extends R>) selections[0]);
 		} else {
-			return new SearchResult<T>(query.getResultList());
+			criteriaQuery.select(criteriaBuilder.construct(resultType, selections));
+		}
+	}
+
+	/**
+	 * Converts a numeric identifier to the numeric type of the identifier
+	 * attribute, as providers look entities up by identifiers of the exact
+	 * type. Other identifiers are returned as they are.
+	 */
+	private static Object convert(final Object id, final Class<?> idType) {
+		if (!(id instanceof Number) || idType.isInstance(id)) {
+			return id;
+		}
+		final Number number = (Number) id;
+		if (idType == Long.class) {
+			return number.longValue();
+		} else if (idType == Integer.class) {
+			return number.intValue();
+		} else if (idType == Short.class) {
+			return number.shortValue();
+		} else if (idType == Byte.class) {
+			return number.byteValue();
+		} else if (idType == BigInteger.class) {
+			return BigInteger.valueOf(number.longValue());
+		} else if (idType == BigDecimal.class) {
+			return new BigDecimal(number.toString());
+		}
+		return id;
+	}
+
+	private static Class<?> boxed(final Class<?> type) {
+		if (!type.isPrimitive()) {
+			return type;
 		}
+		return PRIMITIVE_WRAPPERS.get(type);
 	}
 	
-	private long getItemsCount(final Predicate[] predicateList) {
+	/**
+	 * Builds the count query, over the filtering criterias only. As these come
+	 * first in the data query restrictions, the count query uses the first
+	 * parameters of the plan.
+	 */
+	private CriteriaQuery<Long> buildCountQuery(final Search searchDetails, final QueryParameters parameters) {
 		CriteriaBuilder criteriaBuilder = em.getCriteriaBuilder();
 		CriteriaQuery<Long> countQuery = criteriaBuilder.createQuery(Long.class);
-		countQuery.select(criteriaBuilder.count(countQuery.from(entityType)));
-		if (predicateList != null) {
-			countQuery.where(predicateList);
+		Root<T> fromEntity = countQuery.from(entityType);
+		PathResolver paths = new PathResolver(fromEntity);
+		parameters.rewind();
+		if (searchDetails.getSearchCriterias() != null) {
+			countQuery.where(restrict(countQuery, searchDetails.getSearchCriterias(), criteriaBuilder, paths,
+					parameters));
 		}
-		return em.createQuery(countQuery).getSingleResult();
+		// Restrictions not moved to a subquery repeat the entity once per element
+		countQuery.select(paths.isCollectionJoined() ? criteriaBuilder.countDistinct(fromEntity)
+				: criteriaBuilder.count(fromEntity));
+		return countQuery;
 	}
 	
 }
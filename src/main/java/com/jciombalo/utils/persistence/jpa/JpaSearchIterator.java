@@ -0,0 +1,180 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import com.jciombalo.utils.persistence.Search;
+import com.jciombalo.utils.persistence.SearchBuilder;
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SearchOptions;
+import com.jciombalo.utils.persistence.SortingCriteria;
+
+/**
+ * Iterator over the entities found by a search, fetched in chunks by
+ * {@link JpaRepository#searchIterator(Search, int)}.
+ *
+ * @author jorge.ciombalo
+ */
+class JpaSearchIterator<T> implements Iterator<T> {
+
+	private final JpaRepository<T> repository;
+	private final Search searchDetails;
+	private final SortingCriteria[] sortingCriterias;
+	private final boolean keyset;
+	private final int fetchSize;
+
+	private List<T> chunk = Collections.emptyList();
+	private int position;
+	private int chunkNumber;
+	private Object[] lastSortKey;
+	private boolean exhausted;
+
+	JpaSearchIterator(final JpaRepository<T> repository, final Search searchDetails, final int fetchSize) {
+		super();
+		this.repository = repository;
+		this.searchDetails = searchDetails;
+		this.fetchSize = fetchSize;
+
+		final String idAttribute = idAttributeOf(repository);
+		this.sortingCriterias = uniqueSorting(searchDetails, idAttribute);
+		this.keyset = idAttribute != null && (searchDetails == null || searchDetails.getAttributes() == null)
+				&& KeysetPagination.isNotNull(sortingCriterias, repository.getEntityType(),
+						repository.getEntityManager().getMetamodel());
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (position >= chunk.size()) {
+			if (exhausted) {
+				detachChunk();
+				return false;
+			}
+			fetchNextChunk();
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return chunk.get(position++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Search results cannot be removed through the iterator");
+	}
+
+	private void detachChunk() {
+		final EntityManager em = repository.getEntityManager();
+		for (T entity : chunk) {
+			em.detach(entity);
+		}
+		this.chunk = Collections.emptyList();
+		this.position = 0;
+	}
+
+	private void fetchNextChunk() {
+		detachChunk();
+		chunkNumber++;
+		final SearchBuilder builder;
+		if (keyset) {
+			builder = SearchBuilder.selectAfter(lastSortKey, fetchSize);
+		} else if (searchDetails != null && searchDetails.getAttributes() != null) {
+			final String[] attributes = searchDetails.getAttributes();
+			builder = SearchBuilder.selectAttributesFromPage(chunkNumber, fetchSize, attributes[0],
+					Arrays.copyOfRange(attributes, 1, attributes.length));
+		} else {
+			builder = SearchBuilder.selectPage(chunkNumber, fetchSize);
+		}
+		if (searchDetails != null && searchDetails.getSearchCriterias() != null) {
+			final SearchCriteria[] searchCriterias = searchDetails.getSearchCriterias();
+			builder.where(searchCriterias[0]);
+			for (int i = 1; i < searchCriterias.length; i++) {
+				builder.and(searchCriterias[i]);
+			}
+		}
+		if (sortingCriterias != null) {
+			for (SortingCriteria sortingCriteria : sortingCriterias) {
+				builder.sortBy(sortingCriteria);
+			}
+		}
+		if (searchDetails != null && searchDetails.getFetchPaths() != null) {
+			final String[] fetchPaths = searchDetails.getFetchPaths();
+			builder.fetch(fetchPaths[0], Arrays.copyOfRange(fetchPaths, 1, fetchPaths.length));
+		}
+		if (searchDetails != null) {
+			builder.pageBy(searchDetails.getPagingStrategy());
+			applyOptions(builder, searchDetails.getOptions());
+		}
+
+		this.chunk = repository.fetchPage(builder.build());
+		this.exhausted = chunk.size() < fetchSize;
+		if (keyset && !chunk.isEmpty()) {
+			this.lastSortKey = KeysetPagination.sortKeyOf(chunk.get(chunk.size() - 1), repository.getEntityType(),
+					sortingCriterias, repository.getEntityManager().getMetamodel());
+		}
+	}
+
+	private static void applyOptions(final SearchBuilder builder, final SearchOptions options) {
+		if (options.isReadOnly()) {
+			builder.readOnly();
+		}
+		if (options.getFetchSize() != null) {
+			builder.fetchSize(options.getFetchSize());
+		}
+		if (options.getAutoFlush() != null) {
+			builder.autoFlush(options.getAutoFlush());
+		}
+		if (options.getTimeoutMillis() != null) {
+			builder.timeout(options.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+		}
+		for (Map.Entry<String, Object> hint : options.getHints().entrySet()) {
+			builder.hint(hint.getKey(), hint.getValue());
+		}
+	}
+
+	/**
+	 * @return The name of the identifier attribute of the entity, or
+	 *         <code>null</code> if it has a composite identifier.
+	 */
+	private static String idAttributeOf(final JpaRepository<?> repository) {
+		try {
+			return repository.getIdAttribute();
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The sorting criterias of the search, followed by the identifier
+	 *         if it isn't sorted yet, so every chunk is fetched in the same
+	 *         order.
+	 */
+	private static SortingCriteria[] uniqueSorting(final Search searchDetails, final String idAttribute) {
+		final SortingCriteria[] sortings = searchDetails == null ? null : searchDetails.getSortingCriterias();
+		if (idAttribute == null) {
+			return sortings;
+		}
+		if (sortings == null) {
+			return new SortingCriteria[] { SortingCriteria.ASC(idAttribute) };
+		}
+		for (SortingCriteria sorting : sortings) {
+			if (sorting.getAttributePath().equals(idAttribute)) {
+				return sortings;
+			}
+		}
+		final SortingCriteria[] uniqueSortings = Arrays.copyOf(sortings, sortings.length + 1);
+		uniqueSortings[sortings.length] = SortingCriteria.ASC(idAttribute);
+		return uniqueSortings;
+	}
+}
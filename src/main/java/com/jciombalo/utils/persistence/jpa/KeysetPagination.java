@@ -0,0 +1,140 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+import com.jciombalo.utils.persistence.Search;
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SortingCriteria;
+
+/**
+ * Translation of {@link Search#isKeysetPaginated() keyset paginated} searches.
+ * The page is located by a seek criteria on the sorting attributes, e.g. for
+ * <code>a ASC, b DESC</code> after <code>(x, y)</code>:
+ * <code>a &gt; x OR (a = x AND b &lt; y)</code>.
+ *
+ * @author jorge.ciombalo
+ */
+final class KeysetPagination {
+
+	private KeysetPagination() {
+		super();
+	}
+
+	/**
+	 * @return The filtering criterias of the search, followed by the seek
+	 *         criteria when the search starts after a given sort key.
+	 */
+	static SearchCriteria[] restrictions(final Search search) {
+		if (search == null) {
+			return null;
+		}
+		final SearchCriteria[] criterias = search.getSearchCriterias();
+		if (!search.isKeysetPaginated() || search.getAfterSortKeyValues().length == 0) {
+			return criterias;
+		}
+		final SearchCriteria seek = seekCriteria(search.getSortingCriterias(), search.getAfterSortKeyValues());
+		if (criterias == null) {
+			return new SearchCriteria[] { seek };
+		}
+		final SearchCriteria[] restrictions = Arrays.copyOf(criterias, criterias.length + 1);
+		restrictions[criterias.length] = seek;
+		return restrictions;
+	}
+
+	static SearchCriteria seekCriteria(final SortingCriteria[] sortings, final Object[] lastValues) {
+		final SearchCriteria[] alternatives = new SearchCriteria[sortings.length];
+		for (int i = 0; i < sortings.length; i++) {
+			final SearchCriteria[] terms = new SearchCriteria[i + 1];
+			for (int j = 0; j < i; j++) {
+				terms[j] = SearchCriteria.EQ(sortings[j].getAttributePath(), lastValues[j]);
+			}
+			if (sortings[i].isDesc()) {
+				terms[i] = SearchCriteria.LT(sortings[i].getAttributePath(), lastValues[i]);
+			} else {
+				terms[i] = SearchCriteria.GT(sortings[i].getAttributePath(), lastValues[i]);
+			}
+			alternatives[i] = i == 0 ? terms[0]
+					: SearchCriteria.AND(terms[0], terms[1], Arrays.copyOfRange(terms, 2, terms.length));
+		}
+		if (alternatives.length == 1) {
+			return alternatives[0];
+		}
+		return SearchCriteria.OR(alternatives[0], alternatives[1],
+				Arrays.copyOfRange(alternatives, 2, alternatives.length));
+	}
+
+	/**
+	 * @return Whether none of the sorting attributes can be null, according to
+	 *         the metamodel, so every entity can be sought by its sort key.
+	 */
+	static boolean isNotNull(final SortingCriteria[] sortings, final Class<?> entityType,
+			final Metamodel metamodel) {
+		for (SortingCriteria sorting : sortings) {
+			ManagedType<?> type = metamodel.managedType(entityType);
+			for (String pathPart : PathResolver.segmentsOf(sorting.getAttributePath())) {
+				final Attribute<?, ?> attribute = type.getAttribute(pathPart);
+				if (!(attribute instanceof SingularAttribute)) {
+					return false;
+				}
+				final SingularAttribute<?, ?> singular = (SingularAttribute<?, ?>) attribute;
+				if (!singular.isId() && singular.isOptional()) {
+					return false;
+				}
+				if (singular.getType() instanceof ManagedType) {
+					type = (ManagedType<?>) singular.getType();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The values of the sorting attributes of the given entity.
+	 * @throws IllegalStateException
+	 *             If any of the attributes cannot be read.
+	 */
+	static Object[] sortKeyOf(final Object entity, final Class<?> entityType, final SortingCriteria[] sortings,
+			final Metamodel metamodel) throws IllegalStateException {
+		final Object[] sortKey = new Object[sortings.length];
+		for (int i = 0; i < sortings.length; i++) {
+			Object value = entity;
+			ManagedType<?> type = metamodel.managedType(entityType);
+			String[] pathParts = PathResolver.segmentsOf(sortings[i].getAttributePath());
+			for (int j = 0; j < pathParts.length && value != null; j++) {
+				Attribute<?, ?> attribute = type.getAttribute(pathParts[j]);
+				value = read(value, attribute);
+				if (j + 1 < pathParts.length) {
+					type = metamodel.managedType(attribute.getJavaType());
+				}
+			}
+			sortKey[i] = value;
+		}
+		return sortKey;
+	}
+
+	private static Object read(final Object target, final Attribute<?, ?> attribute) throws IllegalStateException {
+		final Member member = attribute.getJavaMember();
+		try {
+			if (member instanceof Field) {
+				Field field = (Field) member;
+				field.setAccessible(true);
+				return field.get(target);
+			} else {
+				Method getter = (Method) member;
+				getter.setAccessible(true);
+				return getter.invoke(target);
+			}
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Cannot read the attribute " + attribute.getName(), e);
+		}
+	}
+}
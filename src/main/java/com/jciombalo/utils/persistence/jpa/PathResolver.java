@@ -0,0 +1,274 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Fetch;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+
+/**
+ * Resolves dotted attribute paths (e.g. <code>skill.name</code>) from the root
+ * of a single criteria query. Associations and collections along a path are
+ * joined once per query, so every path going through them reuses the same
+ * join, and resolved paths are kept for the next criterias using them. Paths
+ * of restrictions are inner joined, while {@link #getOuter(String) outer}
+ * paths, those sorted, grouped or selected, are left joined so they never
+ * filter entities out, unless a restriction already joined them. An
+ * association followed only by its identifier (e.g. <code>skill.id</code>)
+ * isn't joined, as the identifier is held by the foreign key. Fetched
+ * associations are joined apart, so restrictions never limit the elements of
+ * a fetched collection. Expressions given an {@link #alias(String, Expression)
+ * alias} are resolved by it, before any attribute path of the same name.
+ *
+ * @author jorge.ciombalo
+ */
+final class PathResolver {
+
+	private static final int MAX_CACHED_SEGMENTS = 4096;
+	private static final ConcurrentMap<String, String[]> SEGMENTS = new ConcurrentHashMap<>();
+
+	private final Root<?> root;
+	private final Map<String, From<?, ?>> joins = new HashMap<>();
+	private final Map<String, Path<?>> paths = new HashMap<>();
+	private final Map<String, From<?, ?>> outerJoins = new HashMap<>();
+	private final Map<String, Path<?>> outerPaths = new HashMap<>();
+	private final Map<String, Fetch<?, ?>> fetches = new HashMap<>();
+	private final Map<String, Expression<?>> aliases = new HashMap<>();
+	private boolean collectionJoined;
+	private boolean collectionFetched;
+
+	PathResolver(final Root<?> root) {
+		super();
+		this.root = root;
+	}
+
+	Root<?> getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return Whether a collection was joined, in which case the query may
+	 *         find the same root entity more than once.
+	 */
+	boolean isCollectionJoined() {
+		return collectionJoined;
+	}
+
+	/**
+	 * @return Whether a collection was fetched, in which case the rows of the
+	 *         query repeat the root entities.
+	 */
+	boolean isCollectionFetched() {
+		return collectionFetched;
+	}
+
+	/**
+	 * @return Whether the path, unless aliased, goes through a collection, so
+	 *         it has a value per element of the collection.
+	 * @throws IllegalArgumentException
+	 *             If an attribute of the path doesn't exist.
+	 */
+	boolean isCollectionPath(final String attributePath) throws IllegalArgumentException {
+		if (aliases.containsKey(attributePath)) {
+			return false;
+		}
+		ManagedType<?> type = root.getModel();
+		for (String segment : segmentsOf(attributePath)) {
+			if (type == null) {
+				return false;
+			}
+			final Attribute<?, ?> attribute = type.getAttribute(segment);
+			if (attribute.isCollection()) {
+				return true;
+			}
+			type = managedTypeOf(attribute);
+		}
+		return false;
+	}
+
+	/**
+	 * Fetch joins every association along the path, reusing the fetches of
+	 * the paths sharing a prefix with it.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If an attribute of the path doesn't exist, or isn't an
+	 *             association.
+	 */
+	void fetch(final String attributePath) throws IllegalArgumentException {
+		FetchParent<?, ?> parent = root;
+		ManagedType<?> type = root.getModel();
+		int prefixEnd = -1;
+		for (String segment : segmentsOf(attributePath)) {
+			prefixEnd += segment.length() + 1;
+			final Attribute<?, ?> attribute = type == null ? null : type.getAttribute(segment);
+			if (attribute == null || attribute.getPersistentAttributeType() == PersistentAttributeType.BASIC
+					|| attribute.getPersistentAttributeType() == PersistentAttributeType.EMBEDDED) {
+				throw new IllegalArgumentException(attributePath + " is not a path of associations");
+			}
+			final String prefix = attributePath.substring(0, prefixEnd);
+			Fetch<?, ?> fetch = fetches.get(prefix);
+			if (fetch == null) {
+				fetch = parent.fetch(segment, JoinType.LEFT);
+				fetches.put(prefix, fetch);
+			}
+			collectionFetched |= attribute.isCollection();
+			parent = fetch;
+			type = managedTypeOf(attribute);
+		}
+	}
+
+	/**
+	 * Makes <code>name</code> resolve to <code>expression</code>, such as an
+	 * aggregate of the query.
+	 */
+	void alias(final String name, final Expression<?> expression) {
+		aliases.put(name, expression);
+	}
+
+	/**
+	 * Resolves the path of a restriction, inner joining its associations.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If an attribute of the path doesn't exist.
+	 */
+	<Y> Expression<Y> get(final String attributePath) throws IllegalArgumentException {
+		return get(attributePath, paths, false);
+	}
+
+	/**
+	 * Resolves a path sorted, grouped or selected by the query, left joining
+	 * the associations not joined yet, so entities lacking them aren't
+	 * filtered out.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If an attribute of the path doesn't exist.
+	 */
+	<Y> Expression<Y> getOuter(final String attributePath) throws IllegalArgumentException {
+		return get(attributePath, outerPaths, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <Y> Expression<Y> get(final String attributePath, final Map<String, Path<?>> resolved,
+			final boolean outer) {
+		final Expression<?> aliased = aliases.get(attributePath);
+		if (aliased != null) {
+			return (Expression<Y>) aliased;
+		}
+		Path<?> path = resolved.get(attributePath);
+		if (path == null) {
+			path = resolve(attributePath, outer);
+			resolved.put(attributePath, path);
+		}
+		return (Path<Y>) path;
+	}
+
+	private Path<?> resolve(final String attributePath, final boolean outer) {
+		final String[] segments = segmentsOf(attributePath);
+		Path<?> path = root;
+		ManagedType<?> type = root.getModel();
+		int prefixEnd = -1;
+		for (int i = 0; i < segments.length; i++) {
+			prefixEnd += segments[i].length() + 1;
+			final Attribute<?, ?> attribute = type == null ? null : type.getAttribute(segments[i]);
+			if (path instanceof From && isJoined(attribute, segments, i)) {
+				path = joinOf((From<?, ?>) path, attributePath.substring(0, prefixEnd), segments[i], outer);
+				collectionJoined |= attribute.isCollection();
+			} else {
+				path = path.get(segments[i]);
+			}
+			type = managedTypeOf(attribute);
+		}
+		return path;
+	}
+
+	private From<?, ?> joinOf(final From<?, ?> from, final String prefix, final String attribute,
+			final boolean outer) {
+		From<?, ?> join = joins.get(prefix);
+		if (join == null && outer) {
+			join = outerJoins.get(prefix);
+			if (join == null) {
+				join = from.join(attribute, JoinType.LEFT);
+				outerJoins.put(prefix, join);
+			}
+		} else if (join == null) {
+			join = from.join(attribute);
+			joins.put(prefix, join);
+		}
+		return join;
+	}
+
+	/**
+	 * @return Whether the attribute at <code>index</code> is an association or
+	 *         collection followed by other segments, other than the identifier
+	 *         alone. The persistent attribute type is checked instead of
+	 *         {@link Attribute#isAssociation()}, which some providers don't
+	 *         report for singular associations.
+	 */
+	private static boolean isJoined(final Attribute<?, ?> attribute, final String[] segments, final int index) {
+		if (attribute == null || index == segments.length - 1
+				|| attribute.getPersistentAttributeType() == PersistentAttributeType.BASIC
+				|| attribute.getPersistentAttributeType() == PersistentAttributeType.EMBEDDED) {
+			return false;
+		}
+		if (attribute.isCollection() || index != segments.length - 2) {
+			return true;
+		}
+		final ManagedType<?> target = managedTypeOf(attribute);
+		final Attribute<?, ?> next = target == null ? null : target.getAttribute(segments[index + 1]);
+		return !(next instanceof SingularAttribute && ((SingularAttribute<?, ?>) next).isId());
+	}
+
+	private static ManagedType<?> managedTypeOf(final Attribute<?, ?> attribute) {
+		final Type<?> type;
+		if (attribute instanceof SingularAttribute) {
+			type = ((SingularAttribute<?, ?>) attribute).getType();
+		} else if (attribute instanceof PluralAttribute) {
+			type = ((PluralAttribute<?, ?, ?>) attribute).getElementType();
+		} else {
+			return null;
+		}
+		return type instanceof ManagedType ? (ManagedType<?>) type : null;
+	}
+
+	/**
+	 * @return The attribute names of the dotted path, split once per distinct
+	 *         path.
+	 */
+	static String[] segmentsOf(final String attributePath) {
+		String[] segments = SEGMENTS.get(attributePath);
+		if (segments == null) {
+			segments = split(attributePath);
+			if (SEGMENTS.size() < MAX_CACHED_SEGMENTS) {
+				SEGMENTS.putIfAbsent(attributePath, segments);
+			}
+		}
+		return segments;
+	}
+
+	private static String[] split(final String attributePath) {
+		final List<String> segments = new ArrayList<>(2);
+		int start = 0;
+		int dot;
+		while ((dot = attributePath.indexOf('.', start)) >= 0) {
+			segments.add(attributePath.substring(start, dot));
+			start = dot + 1;
+		}
+		segments.add(attributePath.substring(start));
+		return segments.toArray(new String[segments.size()]);
+	}
+}
@@ -0,0 +1,70 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.ParameterExpression;
+
+/**
+ * Bind parameters created while translating a search into criteria queries.
+ * Parameters are handed out by position, so translating the same criterias a
+ * second time (e.g. for the count query) after a {@link #rewind()} reuses the
+ * parameters already created.
+ *
+ * @author jorge.ciombalo
+ */
+class QueryParameters {
+
+	private final CriteriaBuilder builder;
+	private final List<ParameterExpression<?>> expressions = new ArrayList<>();
+	private int position;
+
+	QueryParameters(final CriteriaBuilder builder) {
+		super();
+		this.builder = builder;
+	}
+
+	/**
+	 * @return The parameter at the current position, created with the type of
+	 *         <code>value</code> if it doesn't exist yet.
+	 */
+	@SuppressWarnings("unchecked")
+	<X> ParameterExpression<X> next(final Object value) {
+		if (position < expressions.size()) {
+			return (ParameterExpression<X>) expressions.get(position++);
+		}
+		ParameterExpression<X> expression = (ParameterExpression<X>) builder.parameter(typeOf(value));
+		expressions.add(expression);
+		position++;
+		return expression;
+	}
+
+	void rewind() {
+		rewind(0);
+	}
+
+	/**
+	 * Hands out the parameters again from the given position, to translate
+	 * the same criterias a second time.
+	 */
+	void rewind(final int position) {
+		this.position = position;
+	}
+
+	/**
+	 * @return The number of parameters handed out since the last
+	 *         {@link #rewind()}.
+	 */
+	int position() {
+		return position;
+	}
+
+	List<ParameterExpression<?>> getExpressions() {
+		return expressions;
+	}
+
+	static Class<?> typeOf(final Object value) {
+		return value == null ? Object.class : value.getClass();
+	}
+}
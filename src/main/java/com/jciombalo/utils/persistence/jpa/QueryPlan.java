@@ -0,0 +1,91 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+
+/**
+ * Criteria queries translated from a {@link SearchShape search shape}, holding
+ * bind parameters in place of the search values. Providers may complete
+ * criteria objects the first time they render them, e.g. Hibernate assigns
+ * aliases to their roots and joins, so a plan must be {@link #prepare
+ * prepared} before being shared. Once prepared, a plan is never modified, so
+ * it can be executed by any {@link EntityManager} of the same persistence
+ * unit.
+ *
+ * @author jorge.ciombalo
+ */
+final class QueryPlan<T> {
+
+	private final CriteriaQuery<T> dataQuery;
+	private final CriteriaQuery<Long> countQuery;
+	private final List<ParameterExpression<?>> parameters;
+	private final int countParameters;
+	private final boolean collectionFetched;
+
+	/**
+	 * @param countParameters
+	 *            How many of the first <code>parameters</code> are used by the
+	 *            count query.
+	 * @param collectionFetched
+	 *            Whether the data query fetches collections, so limiting its
+	 *            rows wouldn't limit its entities.
+	 */
+	QueryPlan(final CriteriaQuery<T> dataQuery, final CriteriaQuery<Long> countQuery,
+			final List<ParameterExpression<?>> parameters, final int countParameters,
+			final boolean collectionFetched) {
+		super();
+		this.dataQuery = dataQuery;
+		this.countQuery = countQuery;
+		this.parameters = parameters;
+		this.countParameters = countParameters;
+		this.collectionFetched = collectionFetched;
+	}
+
+	/**
+	 * Renders the queries of the plan once, on the calling thread, so any
+	 * change made by the provider on their first rendering happens before the
+	 * plan is shared.
+	 * 
+	 * @return This plan.
+	 */
+	QueryPlan<T> prepare(final EntityManager em) {
+		em.createQuery(dataQuery);
+		if (countQuery != null) {
+			em.createQuery(countQuery);
+		}
+		return this;
+	}
+
+	boolean isCollectionFetched() {
+		return collectionFetched;
+	}
+
+	TypedQuery<T> createDataQuery(final EntityManager em, final List<Object> values) {
+		return bind(em.createQuery(dataQuery), values, parameters.size());
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             If the plan was built for a search without pagination.
+	 */
+	TypedQuery<Long> createCountQuery(final EntityManager em, final List<Object> values)
+			throws IllegalStateException {
+		if (countQuery == null) {
+			throw new IllegalStateException("The query plan has no count query");
+		}
+		return bind(em.createQuery(countQuery), values, countParameters);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <X> TypedQuery<X> bind(final TypedQuery<X> query, final List<Object> values, final int count) {
+		for (int i = 0; i < count; i++) {
+			query.setParameter((Parameter<Object>) parameters.get(i), values.get(i));
+		}
+		return query;
+	}
+}
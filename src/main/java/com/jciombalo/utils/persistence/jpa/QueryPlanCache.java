@@ -0,0 +1,101 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Cache of the criteria queries translated by {@link JpaRepository#search},
+ * keyed by entity type and by the structure of the search (selected
+ * attributes, operations, attribute paths, sorting and presence of
+ * pagination), but not by its values. Searches sharing the same structure skip
+ * the criteria translation and only bind their values to the cached queries.
+ * </p>
+ * <p>
+ * A single cache instance should be shared by all the repositories created
+ * over the same <code>EntityManagerFactory</code>, and never across different
+ * persistence units. Once <code>maxSize</code> query plans are cached, new
+ * shapes are translated on every search, without being cached.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see JpaRepository#withQueryPlanCache(QueryPlanCache)
+ */
+public class QueryPlanCache {
+
+	public static final int DEFAULT_MAX_SIZE = 512;
+
+	private final ConcurrentMap<PlanKey, QueryPlan<?>> plans = new ConcurrentHashMap<>();
+	private final int maxSize;
+
+	public QueryPlanCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            Positive number of query plans that can be cached.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxSize</code> is not positive.
+	 */
+	public QueryPlanCache(final int maxSize) throws IllegalArgumentException {
+		super();
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Max size must be a positive number");
+		}
+		this.maxSize = maxSize;
+	}
+
+	@SuppressWarnings("unchecked")
+	<R> QueryPlan<R> get(final Class<?> entityType, final String shape) {
+		return (QueryPlan<R>) plans.get(new PlanKey(entityType, shape));
+	}
+
+	void put(final Class<?> entityType, final String shape, final QueryPlan<?> plan) {
+		if (plans.size() < maxSize) {
+			plans.putIfAbsent(new PlanKey(entityType, shape), plan);
+		}
+	}
+
+	/**
+	 * @return The number of query plans currently cached.
+	 */
+	public int size() {
+		return plans.size();
+	}
+
+	/**
+	 * Removes all the cached query plans.
+	 */
+	public void clear() {
+		plans.clear();
+	}
+
+	private static final class PlanKey {
+		private final Class<?> entityType;
+		private final String shape;
+
+		PlanKey(final Class<?> entityType, final String shape) {
+			this.entityType = entityType;
+			this.shape = shape;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * entityType.hashCode() + shape.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof PlanKey)) {
+				return false;
+			}
+			PlanKey other = (PlanKey) obj;
+			return entityType.equals(other.entityType) && shape.equals(other.shape);
+		}
+	}
+}
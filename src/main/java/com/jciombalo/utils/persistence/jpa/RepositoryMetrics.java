@@ -0,0 +1,39 @@
+package com.jciombalo.utils.persistence.jpa;
+
+/**
+ * <p>
+ * Receives the latency and the number of rows of every operation performed by
+ * a {@link JpaRepository}. Implementations are called on the thread performing
+ * the operation, so they must be thread-safe and should return quickly; a
+ * single instance is usually shared by all the repositories of an
+ * application.
+ * </p>
+ * <p>
+ * {@link InMemoryRepositoryMetrics} keeps latency histograms that can be
+ * exported to any metrics system.
+ * </p>
+ *
+ * @author jorge.ciombalo
+ *
+ * @see JpaRepository#withMetrics(RepositoryMetrics)
+ */
+public interface RepositoryMetrics {
+
+	/**
+	 * @param entityType
+	 *            The kind of the entities handled by the repository.
+	 * @param operation
+	 *            The operation performed.
+	 * @param shape
+	 *            Fingerprint of the structure of the search, without its
+	 *            values, for the search related operations, or
+	 *            <code>null</code> for the others. Searches differing only by
+	 *            their values share the same fingerprint.
+	 * @param elapsedNanos
+	 *            The time taken by the operation, in nanoseconds.
+	 * @param rows
+	 *            The number of entities fetched, counted or written by the
+	 *            operation.
+	 */
+	void record(Class<?> entityType, RepositoryOperation operation, String shape, long elapsedNanos, long rows);
+}
@@ -0,0 +1,55 @@
+package com.jciombalo.utils.persistence.jpa;
+
+/**
+ * Operations of a {@link JpaRepository} reported to its
+ * {@link RepositoryMetrics}.
+ *
+ * @author jorge.ciombalo
+ */
+public enum RepositoryOperation {
+
+	/**
+	 * Insertion of entities, by <code>create</code> or <code>createAll</code>.
+	 */
+	CREATE,
+
+	/**
+	 * Retrieval of entities by identifier, by <code>retrieve</code>,
+	 * <code>retrieveAll</code>, or the second query of the pages located by
+	 * identifier first.
+	 */
+	RETRIEVE,
+
+	/**
+	 * Change of entities, by <code>update</code>, <code>updateAll</code> or
+	 * <code>updateWhere</code>.
+	 */
+	UPDATE,
+
+	/**
+	 * Removal of entities, by any of the <code>delete</code> methods.
+	 */
+	DELETE,
+
+	/**
+	 * Data query of a search, reporting the entities fetched.
+	 */
+	SEARCH,
+
+	/**
+	 * Count query of a paginated search, reporting the entities counted.
+	 */
+	COUNT,
+
+	/**
+	 * Aggregate query of an aggregation, reporting the groups found.
+	 */
+	AGGREGATE,
+
+	/**
+	 * Translation of a search or an aggregation into criteria queries,
+	 * reported only when the query plan isn't found in the
+	 * {@link QueryPlanCache}.
+	 */
+	TRANSLATION
+}
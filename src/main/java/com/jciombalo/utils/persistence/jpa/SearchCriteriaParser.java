@@ -1,116 +1,262 @@
 package com.jciombalo.utils.persistence.jpa;
 
+import java.util.List;
+import java.util.Locale;
+
 import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
 
 import com.jciombalo.utils.persistence.SearchCriteria;
 import com.jciombalo.utils.persistence.SearchCriteriaType;
 
 class SearchCriteriaParser {
 
-	public static Predicate[] parse(final SearchCriteria[] criterias, final CriteriaBuilder builder, final Root<?> fromClause) {
+	private static final char LIKE_ESCAPE = '\\';
+
+	public static Predicate[] parse(final SearchCriteria[] criterias, final CriteriaBuilder builder,
+			final PathResolver paths, final QueryParameters parameters) {
 		Predicate[] predicates = new Predicate[criterias.length];
 		for (int i = 0; i < criterias.length; i++) {
 			SearchCriteria searchCriteria = criterias[i];
 			CriteriaTypeParser parser = CriteriaTypeParser.getParser(searchCriteria.getOperation());
-			predicates[i] = parser.parse(searchCriteria, builder, fromClause);
+			predicates[i] = parser.parse(searchCriteria, builder, paths, parameters);
 		}
 		return predicates;
 	}
 
+	/**
+	 * Appends the structure of the given criterias to <code>shape</code>, and
+	 * their values to <code>values</code>, in the same order the parameters are
+	 * created by {@link #parse}.
+	 */
+	public static void describe(final SearchCriteria[] criterias, final StringBuilder shape, final List<Object> values) {
+		for (int i = 0; i < criterias.length; i++) {
+			if (i > 0) {
+				shape.append(',');
+			}
+			SearchCriteria searchCriteria = criterias[i];
+			CriteriaTypeParser.getParser(searchCriteria.getOperation()).describe(searchCriteria, shape, values);
+		}
+	}
+
+	/**
+	 * Translates a partial <code>EQ</code> into a <code>LIKE</code>. The
+	 * wildcards of the value are escaped, so a prefix search is a
+	 * <code>LIKE</code> with a constant prefix, which databases turn into an
+	 * index range when the collation of the column allows it. No range is
+	 * added here, as the successor of a prefix depends on the collation.
+	 */
+	private static Predicate like(final SearchCriteria criteria, final CriteriaBuilder builder,
+			final Expression<String> path, final QueryParameters parameters) {
+		final Expression<String> expression = ignoreCase(criteria) ? builder.lower(path) : path;
+		return builder.like(expression, parameters.<String>next(""), LIKE_ESCAPE);
+	}
+
+	private static void describeLike(final SearchCriteria criteria, final StringBuilder shape,
+			final List<Object> values) {
+		final String value = valueToMatch(criteria);
+		final boolean startingWith = (Boolean) criteria.getArgs()[2];
+		final boolean endingWith = (Boolean) criteria.getArgs()[3];
+
+		final StringBuilder pattern = new StringBuilder();
+		if (!startingWith) {
+			pattern.append('%');
+		}
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+				pattern.append(LIKE_ESCAPE);
+			}
+			pattern.append(c);
+		}
+		if (!endingWith) {
+			pattern.append('%');
+		}
+		shape.append(ignoreCase(criteria) ? "ILIKE(" : "LIKE(").append(criteria.getArgs()[0]);
+		values.add(pattern.toString());
+		shape.append(')');
+	}
+
+	private static String valueToMatch(final SearchCriteria criteria) {
+		final String value = String.valueOf(criteria.getArgs()[1]);
+		return ignoreCase(criteria) ? value.toLowerCase(Locale.ROOT) : value;
+	}
+
+	private static boolean ignoreCase(final SearchCriteria criteria) {
+		return criteria.getArgs().length > 4 && (Boolean) criteria.getArgs()[4];
+	}
+
 	enum CriteriaTypeParser {
 		EQ(SearchCriteriaType.EQ) {
 			@Override
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				String attributePath = (String) criteria.getArgs()[0];
 				if (criteria.getArgs().length == 2) {
-					return builder.equal(this.resolvePath(attributePath, fromClause), criteria.getArgs()[1]);
-				} else {
-					final String value = (String) criteria.getArgs()[1];
-					final Boolean startingWith = (Boolean) criteria.getArgs()[2];
-					final Boolean endingWith = (Boolean) criteria.getArgs()[3];
-					
-					StringBuilder valueBuilder = new StringBuilder();
-					if (!startingWith) {
-						valueBuilder.append("%");
-					}
-					valueBuilder.append(value);
-					if (!endingWith) {
-						valueBuilder.append("%");
+					final Object value = criteria.getArgs()[1];
+					if (value == null) {
+						return builder.isNull(paths.get(attributePath));
 					}
-					return builder.like(this.<String>resolvePath(attributePath, fromClause), valueBuilder.toString());
+					return builder.equal(paths.get(attributePath), parameters.next(value));
+				} else {
+					return like(criteria, builder, paths.<String>get(attributePath), parameters);
+				}
+			}
+
+			@Override
+			public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+				if (criteria.getArgs().length == 2 && criteria.getArgs()[1] == null) {
+					shape.append("EQ(").append(criteria.getArgs()[0]).append(":null)");
+				} else if (criteria.getArgs().length == 2) {
+					this.describeValue(criteria, shape, values);
+				} else {
+					describeLike(criteria, shape, values);
 				}
 			}
 		},
 		GE(SearchCriteriaType.GE) {
 			@Override
 			@SuppressWarnings({ "rawtypes", "unchecked" })
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				String attributePath = (String) criteria.getArgs()[0];
-				Comparable value = (Comparable) criteria.getArgs()[1];
-				return builder.greaterThanOrEqualTo(this.<Comparable>resolvePath(attributePath, fromClause), value);
+				Expression<Comparable> value = parameters.next(criteria.getArgs()[1]);
+				return builder.greaterThanOrEqualTo(paths.<Comparable>get(attributePath), value);
 			}
 		},
 		GT(SearchCriteriaType.GT) {
 			@Override
 			@SuppressWarnings({ "rawtypes", "unchecked" })
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				String attributePath = (String) criteria.getArgs()[0];
-				Comparable value = (Comparable) criteria.getArgs()[1];
-				return builder.greaterThan(this.<Comparable>resolvePath(attributePath, fromClause), value);
+				Expression<Comparable> value = parameters.next(criteria.getArgs()[1]);
+				return builder.greaterThan(paths.<Comparable>get(attributePath), value);
 			}
 		},
 		IN(SearchCriteriaType.IN) {
 			@Override
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				final String attributePath = (String) criteria.getArgs()[0];
 				final Object[] values = (Object[]) criteria.getArgs()[1];
-				return this.resolvePath(attributePath, fromClause).in(values);
+				if (values.length == 0) {
+					// Nothing is in an empty list
+					return builder.disjunction();
+				}
+				final Expression<?>[] valueParameters = new Expression<?>[values.length];
+				for (int i = 0; i < values.length; i++) {
+					valueParameters[i] = parameters.next(values[i]);
+				}
+				return paths.get(attributePath).in(valueParameters);
+			}
+
+			@Override
+			public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+				final Object[] inValues = (Object[]) criteria.getArgs()[1];
+				shape.append(this.name()).append('(').append(criteria.getArgs()[0]);
+				for (Object value : inValues) {
+					shape.append(':').append(QueryParameters.typeOf(value).getName());
+					values.add(value);
+				}
+				shape.append(')');
 			}
 		},
 		LE(SearchCriteriaType.LE) {
 			@Override
 			@SuppressWarnings({ "rawtypes", "unchecked" })
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				String attributePath = (String) criteria.getArgs()[0];
-				Comparable value = (Comparable) criteria.getArgs()[1];
-				return builder.lessThanOrEqualTo(this.<Comparable>resolvePath(attributePath, fromClause), value);
+				Expression<Comparable> value = parameters.next(criteria.getArgs()[1]);
+				return builder.lessThanOrEqualTo(paths.<Comparable>get(attributePath), value);
 			}
 		},
 		LT(SearchCriteriaType.LT) {
 			@Override
 			@SuppressWarnings({ "rawtypes", "unchecked" })
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				String attributePath = (String) criteria.getArgs()[0];
-				Comparable value = (Comparable) criteria.getArgs()[1];
-				return builder.lessThan(this.<Comparable>resolvePath(attributePath, fromClause), value);
+				Expression<Comparable> value = parameters.next(criteria.getArgs()[1]);
+				return builder.lessThan(paths.<Comparable>get(attributePath), value);
+			}
+		},
+		RI(SearchCriteriaType.RI) {
+			@Override
+			@SuppressWarnings({ "rawtypes", "unchecked" })
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
+				final Expression<Comparable> path = paths.<Comparable>get((String) criteria.getArgs()[0]);
+				final Object from = criteria.getArgs()[1];
+				final Object to = criteria.getArgs()[2];
+				if (from == null && to == null) {
+					return builder.isNotNull(path);
+				} else if (from == null) {
+					return builder.lessThanOrEqualTo(path, parameters.<Comparable>next(to));
+				} else if (to == null) {
+					return builder.greaterThanOrEqualTo(path, parameters.<Comparable>next(from));
+				}
+				return builder.between(path, parameters.<Comparable>next(from), parameters.<Comparable>next(to));
+			}
+
+			@Override
+			public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+				shape.append(this.name()).append('(').append(criteria.getArgs()[0]);
+				for (int i = 1; i < 3; i++) {
+					final Object bound = criteria.getArgs()[i];
+					if (bound == null) {
+						shape.append(":null");
+					} else {
+						shape.append(':').append(QueryParameters.typeOf(bound).getName());
+						values.add(bound);
+					}
+				}
+				shape.append(')');
 			}
 		},
 		NO(SearchCriteriaType.NO) {
 			@Override
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				SearchCriteria innerCriteria = (SearchCriteria) criteria.getArgs()[0];
 				CriteriaTypeParser innerParser = CriteriaTypeParser.getParser(innerCriteria.getOperation());
-				return builder.not(innerParser.parse(innerCriteria, builder, fromClause));
+				return builder.not(innerParser.parse(innerCriteria, builder, paths, parameters));
+			}
+
+			@Override
+			public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+				this.describeInner(criteria, shape, values);
 			}
 		},
 		AND(SearchCriteriaType.AND) {
 			@Override
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				SearchCriteria[] innerCriterias = (SearchCriteria[]) criteria.getArgs();
-				Predicate[] predicates = SearchCriteriaParser.parse(innerCriterias, builder, fromClause);
+				Predicate[] predicates = SearchCriteriaParser.parse(innerCriterias, builder, paths, parameters);
 				return builder.and(predicates);
 			}
+
+			@Override
+			public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+				this.describeInner(criteria, shape, values);
+			}
 		},
 		OR(SearchCriteriaType.OR) {
 			@Override
-			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause) {
+			public Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final PathResolver paths,
+					final QueryParameters parameters) {
 				SearchCriteria[] innerCriterias = (SearchCriteria[]) criteria.getArgs();
-				Predicate[] predicates = SearchCriteriaParser.parse(innerCriterias, builder, fromClause);
+				Predicate[] predicates = SearchCriteriaParser.parse(innerCriterias, builder, paths, parameters);
 				return builder.or(predicates);
 			}
+
+			@Override
+			public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+				this.describeInner(criteria, shape, values);
+			}
 		};
 
 		public static CriteriaTypeParser getParser(final SearchCriteriaType type)
@@ -132,17 +278,32 @@ class SearchCriteriaParser {
 			this.parsedType = parsedType;
 		}
 
-		public abstract Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder, final Root<?> fromClause);
-		
-		@SuppressWarnings("unchecked")
-		protected <T> Path<T> resolvePath(String attributePath, Root<?> fromClause) {
-			String[] pathParts = attributePath.split("\\.");
-			@SuppressWarnings("rawtypes")
-			Path p = fromClause;
-			for (String pathPart : pathParts) {
-				p = p.get(pathPart);
-			}
-			return p;
+		public abstract Predicate parse(final SearchCriteria criteria, final CriteriaBuilder builder,
+				final PathResolver paths, final QueryParameters parameters);
+
+		/**
+		 * Appends the structure of the criteria (operation, attribute path and
+		 * value types) to <code>shape</code>, and its values to
+		 * <code>values</code>. By default, the criteria is expected to hold an
+		 * attribute path and a single value.
+		 */
+		public void describe(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+			this.describeValue(criteria, shape, values);
+		}
+
+		protected void describeValue(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+			final Object value = criteria.getArgs()[1];
+			shape.append(this.name()).append('(').append(criteria.getArgs()[0]).append(':')
+					.append(QueryParameters.typeOf(value).getName()).append(')');
+			values.add(value);
+		}
+
+		protected void describeInner(final SearchCriteria criteria, final StringBuilder shape, final List<Object> values) {
+			final SearchCriteria[] innerCriterias = new SearchCriteria[criteria.getArgs().length];
+			System.arraycopy(criteria.getArgs(), 0, innerCriterias, 0, innerCriterias.length);
+			shape.append(this.name()).append('(');
+			SearchCriteriaParser.describe(innerCriterias, shape, values);
+			shape.append(')');
 		}
 	}
 }
@@ -0,0 +1,88 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors running the asynchronous searches of {@link JpaRepository}.
+ *
+ * @author jorge.ciombalo
+ *
+ * @see JpaRepository#withExecutor(ExecutorService)
+ */
+public final class SearchExecutors {
+
+	/**
+	 * Maximum number of searches waiting for a thread of the bounded pool.
+	 * Once reached, further searches run on the thread submitting them.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private SearchExecutors() {
+		super();
+	}
+
+	/**
+	 * @return An executor starting a virtual thread per search when running on
+	 *         JDK 21 or newer, or otherwise a pool of daemon threads bounded by
+	 *         the number of available processors.
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		try {
+			final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return newBoundedExecutor(Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	/**
+	 * @param threads
+	 *            Positive number of searches running at the same time, usually
+	 *            not above the size of the connection pool.
+	 * @return A pool of daemon threads running up to <code>threads</code>
+	 *         searches at a time, queueing up to {@link #DEFAULT_QUEUE_SIZE}
+	 *         searches.
+	 * @throws IllegalArgumentException
+	 *             If <code>threads</code> is not positive.
+	 */
+	public static ExecutorService newBoundedExecutor(final int threads) throws IllegalArgumentException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be a positive number");
+		}
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE), new SearchThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @return The default executor shared by the repositories not given one,
+	 *         created on first use.
+	 */
+	static ExecutorService shared() {
+		return SharedExecutorHolder.EXECUTOR;
+	}
+
+	private static final class SharedExecutorHolder {
+		private static final ExecutorService EXECUTOR = newDefaultExecutor();
+	}
+
+	private static final class SearchThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "jpa-search-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
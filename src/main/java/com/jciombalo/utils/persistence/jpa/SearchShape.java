@@ -0,0 +1,94 @@
+package com.jciombalo.utils.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jciombalo.utils.persistence.Search;
+import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SortingCriteria;
+
+/**
+ * The structure of a {@link Search}, split from its values. Two searches
+ * having the same selected attributes, fetched associations, operations,
+ * attribute paths, value types, sorting and presence of pagination share the
+ * same {@link #getKey() key}, and can be executed by the same
+ * {@link QueryPlan}, binding their own {@link #getValues() values}.
+ *
+ * @author jorge.ciombalo
+ */
+final class SearchShape {
+
+	private final String key;
+	private final List<Object> values;
+
+	private SearchShape(final String key, final List<Object> values) {
+		super();
+		this.key = key;
+		this.values = values;
+	}
+
+	static SearchShape of(final Search search) {
+		if (search == null) {
+			return new SearchShape("", Collections.emptyList());
+		}
+		final StringBuilder shape = new StringBuilder();
+		final List<Object> values = new ArrayList<>();
+		if (search.getAttributes() != null) {
+			shape.append("SELECT(");
+			for (int i = 0; i < search.getAttributes().length; i++) {
+				if (i > 0) {
+					shape.append(',');
+				}
+				shape.append(search.getAttributes()[i]);
+			}
+			shape.append(')');
+		} else if (search.getFetchPaths() != null) {
+			shape.append("FETCH(");
+			for (String fetchPath : search.getFetchPaths()) {
+				shape.append(fetchPath).append(',');
+			}
+			shape.append(')');
+		}
+		final SearchCriteria[] restrictions = KeysetPagination.restrictions(search);
+		if (restrictions != null) {
+			shape.append("WHERE(");
+			SearchCriteriaParser.describe(restrictions, shape, values);
+			shape.append(')');
+		}
+		if (search.getSortingCriterias() != null) {
+			shape.append("ORDER(");
+			for (SortingCriteria sorting : search.getSortingCriterias()) {
+				shape.append(sorting.getAttributePath()).append(sorting.isDesc() ? " DESC," : " ASC,");
+			}
+			shape.append(')');
+		}
+		if (search.getMaxResults() != null) {
+			shape.append("PAGED");
+		}
+		return new SearchShape(shape.toString(), values);
+	}
+
+	/**
+	 * @return The shape of the same search, projected into
+	 *         <code>projectionType</code> instead of retrieving entities.
+	 */
+	SearchShape as(final Class<?> projectionType) {
+		return new SearchShape("AS(" + projectionType.getName() + ")" + key, values);
+	}
+
+	/**
+	 * @return The structure of the search, without any of its values.
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The values of the search, in the order of the parameters of its
+	 *         query plan.
+	 */
+	List<Object> getValues() {
+		return values;
+	}
+}
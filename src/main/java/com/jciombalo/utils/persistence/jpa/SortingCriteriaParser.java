@@ -2,20 +2,23 @@ package com.jciombalo.utils.persistence.jpa;
 
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Order;
-import javax.persistence.criteria.Root;
 
 import com.jciombalo.utils.persistence.SortingCriteria;
 
 class SortingCriteriaParser {
 	public static Order[] parse(final SortingCriteria[] criterias, final CriteriaBuilder builder,
-			final Root<?> fromClause) {
+			final PathResolver paths) {
 		Order[] sortings = new Order[criterias.length];
 		for (int i = 0; i < criterias.length; i++) {
 			SortingCriteria criteria = criterias[i];
+			if (paths.isCollectionPath(criteria.getAttributePath())) {
+				throw new IllegalArgumentException("Cannot sort by " + criteria.getAttributePath()
+						+ ", it has a value per element of a collection");
+			}
 			if (criteria.isDesc()) {
-				sortings[i] = builder.desc(fromClause.get(criteria.getAttributePath()));
+				sortings[i] = builder.desc(paths.getOuter(criteria.getAttributePath()));
 			} else {
-				sortings[i] = builder.asc(fromClause.get(criteria.getAttributePath()));
+				sortings[i] = builder.asc(paths.getOuter(criteria.getAttributePath()));
 			}
 		}
 		return sortings;
@@ -1,22 +1,53 @@
 package com.jciombalo.utils.persistence.test;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Tuple;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.jciombalo.utils.persistence.Aggregation;
+import com.jciombalo.utils.persistence.AggregationBuilder;
+import com.jciombalo.utils.persistence.BatchReport;
+import com.jciombalo.utils.persistence.CachingRepository;
+import com.jciombalo.utils.persistence.CoalescingRepository;
+import com.jciombalo.utils.persistence.CountPolicy;
+import com.jciombalo.utils.persistence.PagingStrategy;
 import com.jciombalo.utils.persistence.Repository;
 import com.jciombalo.utils.persistence.Search;
 import com.jciombalo.utils.persistence.SearchBuilder;
+import com.jciombalo.utils.persistence.SearchCoalescer;
 import com.jciombalo.utils.persistence.SearchCriteria;
+import com.jciombalo.utils.persistence.SearchCriteriaOptimizer;
 import com.jciombalo.utils.persistence.SearchResult;
+import com.jciombalo.utils.persistence.SearchResultCache;
 import com.jciombalo.utils.persistence.SortingCriteria;
+import com.jciombalo.utils.persistence.jpa.InListPolicy;
+import com.jciombalo.utils.persistence.jpa.InMemoryRepositoryMetrics;
 import com.jciombalo.utils.persistence.jpa.JpaRepository;
+import com.jciombalo.utils.persistence.jpa.QueryPlanCache;
+import com.jciombalo.utils.persistence.jpa.RepositoryOperation;
+import com.jciombalo.utils.persistence.test.entity.Award;
 import com.jciombalo.utils.persistence.test.entity.Person;
 import com.jciombalo.utils.persistence.test.entity.Skill;
 
@@ -59,6 +90,7 @@ public class JpaPersistenceTest extends JpaEMInjector {
     public void preparePersistenceTest() throws Exception {
     	em.clear();
     	em.getTransaction().begin();
+    	em.createQuery("Delete from Award a").executeUpdate();
     	em.createQuery("Delete from Person p").executeUpdate();
     	em.createQuery("Delete from Skill s").executeUpdate();
     	em.persist(scientist);
@@ -94,6 +126,21 @@ public class JpaPersistenceTest extends JpaEMInjector {
     	assertSamePersonInfo(person, retrieved);
     }
     
+    @Test
+    public void givenIds_whenRetrievingAll_thenShouldReturnEntitiesInIdsOrder() {
+    	// given
+    	final Person managed = this.repo.retrieve(initialPersons[1].getId());
+    	final List<Integer> ids = Arrays.asList(initialPersons[3].getId(), initialPersons.length + 1,
+    			initialPersons[1].getId(), initialPersons[0].getId());
+    	// when
+    	final Map<Serializable, Person> retrieved = this.repo.retrieveAll(ids);
+    	// then
+    	Assert.assertEquals(Arrays.<Serializable>asList(initialPersons[3].getId(), initialPersons[1].getId(),
+    			initialPersons[0].getId()), new ArrayList<>(retrieved.keySet()));
+    	Assert.assertSame(managed, retrieved.get(managed.getId()));
+    	assertOriginalPersonList(retrieved.values());
+    }
+    
     @Test
     public void givenChangedEntity_whenUpdating_shouldPersistNewInfo() {
     	// given
@@ -126,6 +173,42 @@ public class JpaPersistenceTest extends JpaEMInjector {
     	assertOriginalPersonList(remaining);
     }
     
+    @Test
+    public void givenExistingId_whenDeletingById_shouldRemoveEntity() {
+    	// given
+    	final Person p = initialPersons[ThreadLocalRandom.current().nextInt(0, initialPersons.length)];
+    	// when
+    	em.getTransaction().begin();
+    	final boolean deleted = this.repo.deleteById(p.getId());
+    	final boolean deletedAgain = this.repo.deleteById(p.getId());
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertTrue(deleted);
+    	Assert.assertFalse(deletedAgain);
+    	Assert.assertNull(em.find(Person.class, p.getId()));
+    	@SuppressWarnings("unchecked")
+		final List<Person> remaining = em.createQuery("Select p from Person p").getResultList();
+    	Assert.assertEquals(initialPersons.length - 1, remaining.size());
+    	assertOriginalPersonList(remaining);
+    }
+    
+    @Test
+    public void givenExistingAndMissingIds_whenDeletingByIds_shouldRemoveExistingEntities() {
+    	// given
+    	final List<Integer> ids = Arrays.asList(initialPersons[0].getId(), initialPersons[1].getId(),
+    			initialPersons.length + 1);
+    	// when
+    	em.getTransaction().begin();
+    	final int deleted = this.repo.deleteByIds(ids);
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertEquals(2, deleted);
+    	@SuppressWarnings("unchecked")
+		final List<Person> remaining = em.createQuery("Select p from Person p").getResultList();
+    	Assert.assertEquals(initialPersons.length - 2, remaining.size());
+    	assertOriginalPersonList(remaining);
+    }
+    
     @Test
     public void givenExistingEntity_whenDeleting_shouldRemoveIt() {
     	// given
@@ -430,4 +513,972 @@ public class JpaPersistenceTest extends JpaEMInjector {
     	Assert.assertTrue(expectedResult.containsAll(result.getData()));
     }
     
+    @Test
+    public void givenPlanCache_whenSearchingSameShapeWithOtherValues_shouldReuseThePlan() {
+    	// given
+    	final QueryPlanCache planCache = new QueryPlanCache();
+    	final Repository<Person> cachedRepo = new JpaRepository<Person>(em, Person.class).withQueryPlanCache(planCache);
+    	final Person p = initialPersons[ThreadLocalRandom.current().nextInt(0, initialPersons.length)];
+    	List<Person> expectedResult = new ArrayList<Person>();
+    	for (Person person : initialPersons) {
+			if (person.getAge().compareTo(p.getAge()) >= 0 && person.getSkill().equals(p.getSkill())) {
+				expectedResult.add(person);
+			}
+		}
+    	// when
+    	cachedRepo.search(SearchBuilder.selectPage(1, initialPersons.length)
+    			.where(SearchCriteria.GE("age", maxAge + 1))
+    			.and(SearchCriteria.EQ("skill.name", "Nobody"))
+    			.build());
+    	final SearchResult<Person> result = cachedRepo.search(SearchBuilder.selectPage(1, initialPersons.length)
+    			.where(SearchCriteria.GE("age", p.getAge()))
+    			.and(SearchCriteria.EQ("skill.name", p.getSkill().getName()))
+    			.build());
+    	// then
+    	Assert.assertEquals(1, planCache.size());
+    	Assert.assertEquals(expectedResult.size(), result.getItemsFound());
+    	Assert.assertEquals(expectedResult.size(), result.getData().size());
+    	Assert.assertTrue(expectedResult.containsAll(result.getData()));
+    }
+    
+    @Test
+    public void givenSortKeyOfLastEntity_whenSearchingAfterIt_shouldWalkAllPagesInOrder() {
+    	// given
+    	final int pageSize = ThreadLocalRandom.current().nextInt(1, initialPersons.length);
+    	final List<Person> expectedOrder = new ArrayList<Person>(Arrays.asList(initialPersons));
+    	Collections.sort(expectedOrder, new Comparator<Person>() {
+			@Override
+			public int compare(Person p1, Person p2) {
+				int byAge = p2.getAge().compareTo(p1.getAge());
+				return byAge != 0 ? byAge : p1.getId().compareTo(p2.getId());
+			}
+		});
+    	// when
+    	final List<Person> walked = new ArrayList<Person>();
+    	Object[] continuationKey = null;
+    	do {
+    		final Search keysetSearch = SearchBuilder.selectAfter(continuationKey, pageSize)
+    				.sortBy(SortingCriteria.DESC("age"))
+    				.sortBy(SortingCriteria.ASC("id"))
+    				.build();
+    		final SearchResult<Person> page = this.repo.search(keysetSearch);
+    		Assert.assertEquals(initialPersons.length, page.getItemsFound());
+    		Assert.assertTrue(page.getData().size() <= pageSize);
+    		walked.addAll(page.getData());
+    		continuationKey = page.getContinuationKey();
+    	} while (continuationKey != null);
+    	// then
+    	Assert.assertEquals(expectedOrder, walked);
+    }
+    
+    @Test
+    public void givenFetchSize_whenIteratingSearch_shouldFetchAllEntitiesInChunks() {
+    	// given
+    	final int fetchSize = ThreadLocalRandom.current().nextInt(1, initialPersons.length);
+    	final Search allSearch = SearchBuilder.selectAll().where(SearchCriteria.GE("age", 0)).build();
+    	// when
+    	final List<Person> iterated = new ArrayList<Person>();
+    	final Iterator<Person> iterator = this.repo.searchIterator(allSearch, fetchSize);
+    	while (iterator.hasNext()) {
+    		iterated.add(iterator.next());
+    	}
+    	// then
+    	Assert.assertEquals(initialPersons.length, iterated.size());
+    	assertOriginalPersonList(iterated);
+    	for (Person person : iterated) {
+			Assert.assertFalse(em.contains(person));
+		}
+    }
+    
+    @Test
+    public void givenCountWhenNeeded_whenSearchingPages_shouldInferCountOnlyOnLastPage() {
+    	// given
+    	final int pageSize = initialPersons.length - 1;
+    	// when
+    	final SearchResult<Person> firstPage = this.repo.search(SearchBuilder.selectPage(1, pageSize)
+    			.countItems(CountPolicy.WHEN_NEEDED).build());
+    	final SearchResult<Person> lastPage = this.repo.search(SearchBuilder.selectPage(2, pageSize)
+    			.countItems(CountPolicy.WHEN_NEEDED).build());
+    	// then
+    	Assert.assertEquals(pageSize, firstPage.getData().size());
+    	Assert.assertTrue(firstPage.hasNextPage());
+    	Assert.assertEquals(SearchResult.UNKNOWN_ITEMS_COUNT, firstPage.getItemsFound());
+    	Assert.assertEquals(1, lastPage.getData().size());
+    	Assert.assertFalse(lastPage.hasNextPage());
+    	Assert.assertEquals(initialPersons.length, lastPage.getItemsFound());
+    }
+    
+    @Test
+    public void givenNoCount_whenSearchingPage_shouldOnlyTellIfThereAreMorePages() {
+    	// when
+    	final SearchResult<Person> result = this.repo.search(SearchBuilder.selectPage(1, initialPersons.length)
+    			.countItems(CountPolicy.NONE).build());
+    	// then
+    	Assert.assertEquals(initialPersons.length, result.getData().size());
+    	Assert.assertFalse(result.hasNextPage());
+    	Assert.assertEquals(SearchResult.UNKNOWN_ITEMS_COUNT, result.getItemsFound());
+    	Assert.assertEquals(SearchResult.UNKNOWN_ITEMS_COUNT, result.getPagesFound());
+    }
+    
+    @Test
+    public void givenNewEntities_whenCreatingAll_shouldPersistThemInBatches() {
+    	// given
+    	final int batchSize = 2;
+    	final List<Person> newPersons = new ArrayList<Person>();
+    	for (int i = 1; i <= 5; i++) {
+    		newPersons.add(new Person(initialPersons.length + i, "Person " + i,
+    				ThreadLocalRandom.current().nextInt(0, maxAge + 1), worldLeader));
+		}
+    	// when
+    	em.getTransaction().begin();
+    	final BatchReport report = this.repo.createAll(newPersons, batchSize);
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertEquals(3, report.getBatches().size());
+    	Assert.assertEquals(newPersons.size(), report.getEntitiesWritten());
+    	for (Person person : newPersons) {
+    		assertSamePersonInfo(person, em.find(Person.class, person.getId()));
+		}
+    }
+    
+    @Test
+    public void givenExistingEntities_whenDeletingAll_shouldRemoveThemInBatches() {
+    	// given
+    	final List<Person> deleted = Arrays.asList(initialPersons).subList(0, initialPersons.length - 1);
+    	// when
+    	em.getTransaction().begin();
+    	final BatchReport report = this.repo.deleteAll(deleted, 1);
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertEquals(deleted.size(), report.getBatches().size());
+    	@SuppressWarnings("unchecked")
+		final List<Person> remaining = em.createQuery("Select p from Person p").getResultList();
+    	Assert.assertEquals(1, remaining.size());
+    	Assert.assertFalse(deleted.containsAll(remaining));
+    }
+    
+    @Test
+    public void givenCriterias_whenDeletingWhere_shouldRemoveOnlyMatchingEntities() {
+    	// given
+    	final SearchCriteria criteria = SearchCriteria.EQ("skill.id", scientist.getId());
+    	// when
+    	em.getTransaction().begin();
+    	final int deleted = this.repo.deleteWhere(criteria);
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertEquals(2, deleted);
+    	Assert.assertNull(em.find(Person.class, initialPersons[0].getId()));
+    	Assert.assertNull(em.find(Person.class, initialPersons[1].getId()));
+    	@SuppressWarnings("unchecked")
+		final List<Person> remaining = em.createQuery("Select p from Person p").getResultList();
+    	Assert.assertEquals(2, remaining.size());
+    	assertOriginalPersonList(remaining);
+    }
+    
+    @Test
+    public void givenCriteriasAndAssignments_whenUpdatingWhere_shouldChangeOnlyMatchingEntities() {
+    	// given
+    	final Person loaded = this.repo.retrieve(initialPersons[2].getId());
+    	final Person untouched = this.repo.retrieve(initialPersons[0].getId());
+    	final Map<String, Object> assignments = new HashMap<>();
+    	assignments.put("age", maxAge + 1);
+    	assignments.put("name", null);
+    	// when
+    	em.getTransaction().begin();
+    	final int updated = this.repo.updateWhere(
+    			new SearchCriteria[] { SearchCriteria.EQ("skill.id", worldLeader.getId()) }, assignments);
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertEquals(2, updated);
+    	final Person reloaded = em.find(Person.class, loaded.getId());
+    	Assert.assertNotSame(loaded, reloaded);
+    	Assert.assertEquals(Integer.valueOf(maxAge + 1), reloaded.getAge());
+    	Assert.assertNull(reloaded.getName());
+    	Assert.assertSame(untouched, em.find(Person.class, initialPersons[0].getId()));
+    	assertSamePersonInfo(initialPersons[0], untouched);
+    }
+    
+    @Test
+    public void givenMetrics_whenSearching_shouldRecordEachOperationByShape() {
+    	// given
+    	final InMemoryRepositoryMetrics metrics = new InMemoryRepositoryMetrics();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withQueryPlanCache(new QueryPlanCache()).withMetrics(metrics);
+    	// when
+    	repository.retrieve(initialPersons[0].getId());
+    	for (Skill skill : Arrays.asList(scientist, worldLeader)) {
+    		repository.search(SearchBuilder.selectPage(1, 1).where(SearchCriteria.EQ("skill.id", skill.getId()))
+    				.build());
+		}
+    	// then
+    	final Map<RepositoryOperation, InMemoryRepositoryMetrics.Snapshot> snapshots = new HashMap<>();
+    	for (InMemoryRepositoryMetrics.Snapshot snapshot : metrics.snapshot()) {
+    		Assert.assertEquals(Person.class, snapshot.getEntityType());
+    		Assert.assertNull(snapshots.put(snapshot.getOperation(), snapshot));
+		}
+    	Assert.assertEquals(1, snapshots.get(RepositoryOperation.RETRIEVE).getCount());
+    	Assert.assertNull(snapshots.get(RepositoryOperation.RETRIEVE).getShape());
+    	Assert.assertEquals(1, snapshots.get(RepositoryOperation.TRANSLATION).getCount());
+    	Assert.assertEquals(2, snapshots.get(RepositoryOperation.SEARCH).getCount());
+    	Assert.assertEquals(2, snapshots.get(RepositoryOperation.SEARCH).getRows());
+    	Assert.assertEquals(2, snapshots.get(RepositoryOperation.COUNT).getCount());
+    	Assert.assertEquals(initialPersons.length, snapshots.get(RepositoryOperation.COUNT).getRows());
+    	Assert.assertEquals(snapshots.get(RepositoryOperation.SEARCH).getShape(),
+    			snapshots.get(RepositoryOperation.COUNT).getShape());
+    	final InMemoryRepositoryMetrics.Snapshot search = snapshots.get(RepositoryOperation.SEARCH);
+    	Assert.assertTrue(search.getPercentileNanos(50) <= search.getPercentileNanos(100));
+    	Assert.assertEquals(search.getMaxNanos(), search.getPercentileNanos(100));
+    }
+    
+    @Test
+    public void givenCachingRepository_whenSearchingAgain_shouldServeCachedResultUntilWrite() {
+    	// given
+    	final SearchResultCache cache = new SearchResultCache(1, TimeUnit.MINUTES);
+    	final Repository<Person> repository = new CachingRepository<Person>(this.repo, Person.class, cache);
+    	final Person newPerson = new Person(initialPersons.length + 1, "Napoleon Bonaparte",
+				ThreadLocalRandom.current().nextInt(0, maxAge + 1), worldLeader);
+    	// when
+    	final SearchResult<Person> first = repository.search(SearchBuilder.selectPage(1, 10)
+    			.where(SearchCriteria.EQ("skill.id", worldLeader.getId())).build());
+    	final SearchResult<Person> second = repository.search(SearchBuilder.selectPage(1, 10)
+    			.where(SearchCriteria.EQ("skill.id", worldLeader.getId())).build());
+    	em.getTransaction().begin();
+    	repository.create(newPerson);
+    	em.getTransaction().commit();
+    	final SearchResult<Person> third = repository.search(SearchBuilder.selectPage(1, 10)
+    			.where(SearchCriteria.EQ("skill.id", worldLeader.getId())).build());
+    	// then
+    	Assert.assertSame(first, second);
+    	Assert.assertEquals(2, first.getItemsFound());
+    	Assert.assertEquals(3, third.getItemsFound());
+    	Assert.assertEquals(1, cache.getHitCount());
+    	Assert.assertEquals(2, cache.getMissCount());
+    	Assert.assertEquals(1, cache.size());
+    }
+    
+    @Test
+    public void givenFullSearchResultCache_whenSearchingOtherSearch_shouldEvictLeastRecentlyUsed() {
+    	// given
+    	final SearchResultCache cache = new SearchResultCache(1, 1, TimeUnit.MINUTES);
+    	final Repository<Person> repository = new CachingRepository<Person>(this.repo, Person.class, cache);
+    	final Search scientists = SearchBuilder.selectAll().where(SearchCriteria.EQ("skill.id", scientist.getId()))
+    			.build();
+    	final Search worldLeaders = SearchBuilder.selectAll()
+    			.where(SearchCriteria.EQ("skill.id", worldLeader.getId())).build();
+    	// when
+    	repository.search(scientists);
+    	repository.search(worldLeaders);
+    	repository.search(worldLeaders);
+    	repository.search(scientists);
+    	// then
+    	Assert.assertEquals(1, cache.getHitCount());
+    	Assert.assertEquals(3, cache.getMissCount());
+    	Assert.assertEquals(2, cache.getEvictionCount());
+    }
+    
+    @Test
+    public void givenSearchInFlight_whenSearchingEqualSearch_shouldShareItsResult() throws Exception {
+    	// given
+    	final SearchCoalescer coalescer = new SearchCoalescer();
+    	final CountDownLatch release = new CountDownLatch(1);
+    	final Repository<Person> slowRepository = new JpaRepository<Person>(em, Person.class) {
+    		@Override
+    		public SearchResult<Person> search(Search searchDetails) {
+    			try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+    			return super.search(searchDetails);
+    		}
+    	};
+    	final Callable<SearchResult<Person>> search = new Callable<SearchResult<Person>>() {
+			@Override
+			public SearchResult<Person> call() throws Exception {
+				return new CoalescingRepository<Person>(slowRepository, Person.class, coalescer)
+						.search(SearchBuilder.selectAll().where(SearchCriteria.EQ("skill.id", scientist.getId()))
+								.build());
+			}
+		};
+    	final ExecutorService executor = Executors.newFixedThreadPool(2);
+    	try {
+    		// when
+    		final Future<SearchResult<Person>> leader = executor.submit(search);
+    		while (coalescer.getInFlightCount() == 0) {
+    			Thread.sleep(1);
+    		}
+    		final Future<SearchResult<Person>> follower = executor.submit(search);
+    		while (coalescer.getCoalescedCount() == 0) {
+    			Thread.sleep(1);
+    		}
+    		release.countDown();
+    		// then
+    		Assert.assertSame(leader.get(), follower.get());
+    		Assert.assertEquals(2, leader.get().getData().size());
+    		Assert.assertEquals(1, coalescer.getExecutionCount());
+    		Assert.assertEquals(0, coalescer.getInFlightCount());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+    }
+    
+    @Test
+    public void givenEntityManagerFactory_whenSearchingAsync_shouldRunSearchesConcurrently() throws Exception {
+    	// given
+    	final ExecutorService executor = Executors.newFixedThreadPool(2);
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withEntityManagerFactory(emf).withExecutor(executor);
+    	try {
+    		// when
+    		final Future<SearchResult<Person>> scientists = repository.searchAsync(SearchBuilder.selectPage(1, 10)
+    				.where(SearchCriteria.EQ("skill.id", scientist.getId())).build());
+    		final Future<SearchResult<Person>> worldLeaders = repository.searchAsync(SearchBuilder.selectAll()
+    				.where(SearchCriteria.EQ("skill.id", worldLeader.getId())).build());
+    		// then
+    		Assert.assertEquals(2, scientists.get().getItemsFound());
+    		assertOriginalPersonList(scientists.get().getData());
+    		Assert.assertEquals(2, worldLeaders.get().getData().size());
+    		assertOriginalPersonList(worldLeaders.get().getData());
+    		Assert.assertFalse(em.contains(worldLeaders.get().getData().get(0)));
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
+    @Test
+    public void givenParallelCount_whenSearchingPage_shouldCountWhileFetchingPage() throws Exception {
+    	// given
+    	final ExecutorService executor = Executors.newFixedThreadPool(1);
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withEntityManagerFactory(emf).withExecutor(executor).withParallelCount(1, TimeUnit.MINUTES);
+    	try {
+    		// when
+    		final SearchResult<Person> firstPage = repository.search(SearchBuilder.selectPage(1, 1)
+    				.sortBy(SortingCriteria.ASC("id")).build());
+    		final SearchResult<Person> lastPage = repository.search(SearchBuilder.selectPage(2, 3)
+    				.sortBy(SortingCriteria.ASC("id")).build());
+    		// then
+    		Assert.assertEquals(initialPersons.length, firstPage.getItemsFound());
+    		Assert.assertTrue(firstPage.hasNextPage());
+    		assertSamePersonInfo(initialPersons[0], firstPage.getData().get(0));
+    		Assert.assertEquals(initialPersons.length, lastPage.getItemsFound());
+    		Assert.assertFalse(lastPage.hasNextPage());
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
+    @Test
+    public void givenCriteriasSharingAssociation_whenSearching_shouldFilterAndSortThroughIt() {
+    	// given
+    	final Search search = SearchBuilder.selectAll()
+    			.where(SearchCriteria.OR(SearchCriteria.EQ("skill.name", scientist.getName()),
+    					SearchCriteria.IN("skill.name", worldLeader.getName())))
+    			.and(SearchCriteria.NO(SearchCriteria.EQ("skill.id", worldLeader.getId())))
+    			.sortBy(SortingCriteria.DESC("skill.name")).sortBy(SortingCriteria.ASC("name")).build();
+    	// when
+    	final SearchResult<Person> result = this.repo.search(search);
+    	// then
+    	Assert.assertEquals(2, result.getData().size());
+    	assertSamePersonInfo(initialPersons[1], result.getData().get(0));
+    	assertSamePersonInfo(initialPersons[0], result.getData().get(1));
+    }
+    
+    @Test
+    public void givenDegenerateCriterias_whenOptimizing_shouldNormalizeThem() {
+    	// given
+    	final SearchCriteria[] criterias = {
+    			SearchCriteria.AND(SearchCriteria.NO(SearchCriteria.NO(SearchCriteria.GE("age", 18))),
+    					SearchCriteria.GE("age", 18)),
+    			SearchCriteria.OR(SearchCriteria.EQ("name", "a"), SearchCriteria.OR(SearchCriteria.EQ("name", "b"),
+    					SearchCriteria.IN("name", "a", "c"))) };
+    	// when
+    	final SearchCriteria[] optimized = SearchCriteriaOptimizer.optimize(criterias);
+    	// then
+    	Assert.assertArrayEquals(new SearchCriteria[] { SearchCriteria.GE("age", 18),
+    			SearchCriteria.IN("name", "a", "b", "c") }, optimized);
+    }
+    
+    @Test
+    public void givenContradictoryCriterias_whenSearching_shouldReturnEmptyResultWithoutQuerying() {
+    	// given
+    	final InMemoryRepositoryMetrics metrics = new InMemoryRepositoryMetrics();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class).withMetrics(metrics);
+    	final Search search = SearchBuilder.selectPage(1, 10).where(SearchCriteria.EQ("skill.id", scientist.getId()))
+    			.and(SearchCriteria.OR(SearchCriteria.EQ("skill.id", worldLeader.getId()),
+    					SearchCriteria.AND(SearchCriteria.GT("age", maxAge), SearchCriteria.LE("age", maxAge))))
+    			.build();
+    	// when
+    	final SearchResult<Person> result = repository.search(search);
+    	// then
+    	Assert.assertTrue(result.getData().isEmpty());
+    	Assert.assertEquals(0, result.getItemsFound());
+    	Assert.assertFalse(result.hasNextPage());
+    	Assert.assertTrue(metrics.snapshot().isEmpty());
+    }
+    
+    @Test
+    public void givenInListsOfCloseSizes_whenSearching_shouldShareTheSameTranslation() {
+    	// given
+    	final InMemoryRepositoryMetrics metrics = new InMemoryRepositoryMetrics();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withQueryPlanCache(new QueryPlanCache()).withMetrics(metrics);
+    	// when
+    	final SearchResult<Person> three = repository.search(SearchBuilder.selectAll().where(SearchCriteria.IN("id",
+    			initialPersons[0].getId(), initialPersons[1].getId(), initialPersons[2].getId())).build());
+    	final SearchResult<Person> four = repository.search(SearchBuilder.selectAll().where(SearchCriteria.IN("id",
+    			initialPersons[0].getId(), initialPersons[1].getId(), initialPersons[2].getId(),
+    			initialPersons[3].getId())).build());
+    	// then
+    	Assert.assertEquals(3, three.getData().size());
+    	Assert.assertEquals(4, four.getData().size());
+    	final Map<RepositoryOperation, InMemoryRepositoryMetrics.Snapshot> snapshots = new HashMap<>();
+    	for (InMemoryRepositoryMetrics.Snapshot snapshot : metrics.snapshot()) {
+    		Assert.assertNull(snapshots.put(snapshot.getOperation(), snapshot));
+		}
+    	Assert.assertEquals(1, snapshots.get(RepositoryOperation.TRANSLATION).getCount());
+    	Assert.assertEquals(2, snapshots.get(RepositoryOperation.SEARCH).getCount());
+    }
+    
+    @Test
+    public void givenInListLongerThanMaxListSize_whenSearching_shouldSplitIt() {
+    	// given
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withInListPolicy(new InListPolicy(true, 2));
+    	// when
+    	final SearchResult<Person> result = repository.search(SearchBuilder.selectAll().where(SearchCriteria.IN("id",
+    			initialPersons[3].getId(), initialPersons[1].getId(), initialPersons[0].getId()))
+    			.sortBy(SortingCriteria.ASC("id")).build());
+    	// then
+    	Assert.assertEquals(3, result.getData().size());
+    	assertSamePersonInfo(initialPersons[0], result.getData().get(0));
+    	assertSamePersonInfo(initialPersons[1], result.getData().get(1));
+    	assertSamePersonInfo(initialPersons[3], result.getData().get(2));
+    }
+    
+    @Test
+    public void givenLowerAndUpperBounds_whenOptimizing_shouldMergeThemIntoRange() {
+    	// given
+    	final SearchCriteria[] criterias = { SearchCriteria.GE("age", 18), SearchCriteria.EQ("name", "a"),
+    			SearchCriteria.LE("age", 65), SearchCriteria.RI("id", 5, null) };
+    	// when
+    	final SearchCriteria[] optimized = SearchCriteriaOptimizer.optimize(criterias);
+    	// then
+    	Assert.assertArrayEquals(new SearchCriteria[] { SearchCriteria.RI("age", 18, 65), SearchCriteria.EQ("name", "a"),
+    			SearchCriteria.GE("id", 5) }, optimized);
+    }
+    
+    @Test
+    public void givenRangeCriterias_whenSearching_shouldReturnEntitiesWithinBounds() {
+    	// given
+    	final Search closed = SearchBuilder.selectAll()
+    			.where(SearchCriteria.RI("id", initialPersons[1].getId(), initialPersons[2].getId()))
+    			.sortBy(SortingCriteria.ASC("id")).build();
+    	final Search halfOpen = SearchBuilder.selectAll()
+    			.where(SearchCriteria.RI("id", null, initialPersons[1].getId())).sortBy(SortingCriteria.ASC("id"))
+    			.build();
+    	// when
+    	final SearchResult<Person> closedResult = this.repo.search(closed);
+    	final SearchResult<Person> halfOpenResult = this.repo.search(halfOpen);
+    	// then
+    	Assert.assertEquals(2, closedResult.getData().size());
+    	assertSamePersonInfo(initialPersons[1], closedResult.getData().get(0));
+    	assertSamePersonInfo(initialPersons[2], closedResult.getData().get(1));
+    	Assert.assertEquals(2, halfOpenResult.getData().size());
+    	assertSamePersonInfo(initialPersons[0], halfOpenResult.getData().get(0));
+    	assertSamePersonInfo(initialPersons[1], halfOpenResult.getData().get(1));
+    }
+    
+    @Test
+    public void givenPrefix_whenSearchingStartingWith_shouldFindEntitiesByPrefixOnly() {
+    	// given
+    	final Search caseSensitive = SearchBuilder.selectAll().where(SearchCriteria.EQ("name", "Al", true, false))
+    			.build();
+    	final Search caseInsensitive = SearchBuilder.selectAll()
+    			.where(SearchCriteria.EQ("name", "nELSON", true, false, true)).build();
+    	final Search wildcard = SearchBuilder.selectAll().where(SearchCriteria.EQ("name", "_%", true, false)).build();
+    	// when
+    	final SearchResult<Person> caseSensitiveResult = this.repo.search(caseSensitive);
+    	final SearchResult<Person> caseInsensitiveResult = this.repo.search(caseInsensitive);
+    	final SearchResult<Person> wildcardResult = this.repo.search(wildcard);
+    	// then
+    	Assert.assertEquals(1, caseSensitiveResult.getData().size());
+    	assertSamePersonInfo(initialPersons[1], caseSensitiveResult.getData().get(0));
+    	Assert.assertEquals(1, caseInsensitiveResult.getData().size());
+    	assertSamePersonInfo(initialPersons[3], caseInsensitiveResult.getData().get(0));
+    	Assert.assertTrue(wildcardResult.getData().isEmpty());
+    }
+    
+    @Test
+    public void givenSelectedAttributes_whenSearchingProjection_shouldReturnTuplesAndDtos() {
+    	// given
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class);
+    	final Search search = SearchBuilder.selectAttributesFromPage(1, 1, "name", "skill.name")
+    			.where(SearchCriteria.EQ("skill.id", scientist.getId())).sortBy(SortingCriteria.ASC("id")).build();
+    	// when
+    	final SearchResult<Tuple> tuples = repository.searchProjection(search, Tuple.class);
+    	final SearchResult<PersonSummary> summaries = repository.searchProjection(search, PersonSummary.class);
+    	final SearchResult<String> names = repository.searchProjection(
+    			SearchBuilder.selectAttributes("name").where(SearchCriteria.EQ("id", initialPersons[2].getId())).build(),
+    			String.class);
+    	// then
+    	Assert.assertEquals(2, tuples.getItemsFound());
+    	Assert.assertEquals(initialPersons[0].getName(), tuples.getData().get(0).get("name"));
+    	Assert.assertEquals(scientist.getName(), tuples.getData().get(0).get("skill.name"));
+    	Assert.assertEquals(2, summaries.getItemsFound());
+    	Assert.assertTrue(summaries.hasNextPage());
+    	Assert.assertEquals(initialPersons[0].getName(), summaries.getData().get(0).name);
+    	Assert.assertEquals(scientist.getName(), summaries.getData().get(0).skillName);
+    	Assert.assertEquals(Arrays.asList(initialPersons[2].getName()), names.getData());
+    }
+    
+    @Test
+    public void givenSearch_whenSearchingIds_shouldReturnIdentifiersOfThePage() {
+    	// given
+    	final Search search = SearchBuilder.selectPage(1, 3).sortBy(SortingCriteria.DESC("id")).build();
+    	// when
+    	final long[] ids = new JpaRepository<Person>(em, Person.class).searchIds(search);
+    	// then
+    	Assert.assertArrayEquals(new long[] { initialPersons[3].getId(), initialPersons[2].getId(),
+    			initialPersons[1].getId() }, ids);
+    }
+    
+    public static class PersonSummary {
+    	private final String name;
+    	private final String skillName;
+    	
+    	public PersonSummary(String name, String skillName) {
+    		this.name = name;
+    		this.skillName = skillName;
+    	}
+    }
+    
+    @Test
+    public void givenReadOnlySearch_whenChangingEntitiesFound_shouldNotWriteThem() {
+    	// given
+    	final Search search = SearchBuilder.selectPage(1, 10).where(SearchCriteria.EQ("id", initialPersons[0].getId()))
+    			.readOnly().fetchSize(10).timeout(10, TimeUnit.SECONDS).build();
+    	final SearchResult<Person> result = this.repo.search(search);
+    	// when
+    	em.getTransaction().begin();
+    	result.getData().get(0).setName("Changed");
+    	em.getTransaction().commit();
+    	em.clear();
+    	// then
+    	Assert.assertEquals(1, result.getItemsFound());
+    	assertSamePersonInfo(initialPersons[0], em.find(Person.class, initialPersons[0].getId()));
+    }
+    
+    @Test
+    public void givenPendingChange_whenSearchingWithoutAutoFlush_shouldNotSeeIt() {
+    	// given
+    	final Search withoutFlush = SearchBuilder.selectAll().where(SearchCriteria.EQ("name", "Changed"))
+    			.autoFlush(false).build();
+    	final Search withFlush = SearchBuilder.selectAll().where(SearchCriteria.EQ("name", "Changed")).build();
+    	em.getTransaction().begin();
+    	em.find(Person.class, initialPersons[0].getId()).setName("Changed");
+    	// when
+    	final SearchResult<Person> withoutFlushResult = this.repo.search(withoutFlush);
+    	final SearchResult<Person> withFlushResult = this.repo.search(withFlush);
+    	em.getTransaction().rollback();
+    	em.clear();
+    	// then
+    	Assert.assertTrue(withoutFlushResult.getData().isEmpty());
+    	Assert.assertEquals(1, withFlushResult.getData().size());
+    }
+    
+    @Test
+    public void givenFetchedAssociation_whenSearchingPage_shouldLoadItWithTheEntities() {
+    	// given
+    	final Search search = SearchBuilder.selectPage(1, 3).where(SearchCriteria.EQ("skill.name", worldLeader.getName()))
+    			.fetch("skill").sortBy(SortingCriteria.ASC("id")).build();
+    	// when
+    	final SearchResult<Person> result = this.repo.search(search);
+    	// then
+    	Assert.assertEquals(2, result.getItemsFound());
+    	Assert.assertEquals(2, result.getData().size());
+    	for (int i = 0; i < 2; i++) {
+    		assertSamePersonInfo(initialPersons[2 + i], result.getData().get(i));
+    		Assert.assertTrue(emf.getPersistenceUnitUtil().isLoaded(result.getData().get(i), "skill"));
+    		Assert.assertEquals(worldLeader, result.getData().get(i).getSkill());
+		}
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void givenFetchedBasicAttribute_whenSearching_shouldFail() {
+    	this.repo.search(SearchBuilder.selectAll().fetch("name").build());
+    }
+    
+    @Test
+    public void givenIdFirstPaging_whenSearchingPage_shouldMatchOffsetPaging() {
+    	// given
+    	final InMemoryRepositoryMetrics metrics = new InMemoryRepositoryMetrics();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class).withMetrics(metrics);
+    	final SearchBuilder idFirst = SearchBuilder.selectPage(2, 2).sortBy(SortingCriteria.DESC("name"))
+    			.pageBy(PagingStrategy.ID_FIRST);
+    	final SearchBuilder offset = SearchBuilder.selectPage(2, 2).sortBy(SortingCriteria.DESC("name"))
+    			.pageBy(PagingStrategy.OFFSET);
+    	// when
+    	final SearchResult<Person> idFirstResult = repository.search(idFirst.build());
+    	final SearchResult<Person> offsetResult = repository.search(offset.build());
+    	// then
+    	Assert.assertEquals(offsetResult.getItemsFound(), idFirstResult.getItemsFound());
+    	Assert.assertEquals(offsetResult.getData(), idFirstResult.getData());
+    	Assert.assertEquals(2, idFirstResult.getData().size());
+    	long retrievals = 0;
+    	for (InMemoryRepositoryMetrics.Snapshot snapshot : metrics.snapshot()) {
+    		if (snapshot.getOperation() == RepositoryOperation.RETRIEVE) {
+    			retrievals += snapshot.getCount();
+    		}
+		}
+    	Assert.assertEquals(1, retrievals);
+    }
+    
+    @Test
+    public void givenGroupedAggregation_whenAggregating_shouldComputeEachGroup() {
+    	// given
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class);
+    	final Aggregation aggregation = AggregationBuilder.groupBy("skill.name").count("persons").sum("age", "totalAge")
+    			.min("id", "firstId").having(SearchCriteria.GE("persons", 2L)).sortBy(SortingCriteria.ASC("skill.name"))
+    			.build();
+    	// when
+    	final List<Map<String, Object>> groups = repository.aggregate(aggregation);
+    	// then
+    	Assert.assertEquals(2, groups.size());
+    	Assert.assertEquals(Arrays.asList("skill.name", "persons", "totalAge", "firstId"),
+    			new ArrayList<>(groups.get(0).keySet()));
+    	Assert.assertEquals(scientist.getName(), groups.get(0).get("skill.name"));
+    	Assert.assertEquals(2L, ((Number) groups.get(0).get("persons")).longValue());
+    	Assert.assertEquals((long) initialPersons[0].getAge() + initialPersons[1].getAge(),
+    			((Number) groups.get(0).get("totalAge")).longValue());
+    	Assert.assertEquals(initialPersons[0].getId(), groups.get(0).get("firstId"));
+    	Assert.assertEquals(worldLeader.getName(), groups.get(1).get("skill.name"));
+    	Assert.assertEquals((long) initialPersons[2].getAge() + initialPersons[3].getAge(),
+    			((Number) groups.get(1).get("totalAge")).longValue());
+    }
+    
+    @Test
+    public void givenFilteredAggregationOfAll_whenAggregating_shouldReturnSingleRow() {
+    	// given
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class);
+    	final Aggregation aggregation = AggregationBuilder.aggregateAll().count("persons").max("age", "oldest")
+    			.where(SearchCriteria.EQ("skill.name", "Nobody")).build();
+    	// when
+    	final List<Map<String, Object>> groups = repository.aggregate(aggregation);
+    	// then
+    	Assert.assertEquals(1, groups.size());
+    	Assert.assertEquals(0L, ((Number) groups.get(0).get("persons")).longValue());
+    	Assert.assertNull(groups.get(0).get("oldest"));
+    }
+    
+    @Test
+    public void givenFacets_whenSearchingPage_shouldCountValuesOfAllMatchingEntities() {
+    	// given
+    	final Search search = SearchBuilder.selectPage(1, 1).where(SearchCriteria.LE("age", maxAge))
+    			.sortBy(SortingCriteria.ASC("id")).facets("skill.name", "name").facetLimit(3).build();
+    	// when
+    	final SearchResult<Person> result = this.repo.search(search);
+    	// then
+    	Assert.assertEquals(1, result.getData().size());
+    	Assert.assertEquals(Arrays.asList("skill.name", "name"), new ArrayList<>(result.getFacets().keySet()));
+    	final Map<Object, Long> skills = result.getFacets().get("skill.name");
+    	Assert.assertEquals(Arrays.<Object>asList(scientist.getName(), worldLeader.getName()),
+    			new ArrayList<>(skills.keySet()));
+    	Assert.assertEquals(Long.valueOf(2), skills.get(scientist.getName()));
+    	Assert.assertEquals(Long.valueOf(2), skills.get(worldLeader.getName()));
+    	Assert.assertEquals(3, result.getFacets().get("name").size());
+    }
+    
+    @Test
+    public void givenParallelFacets_whenSearching_shouldCountFacetsConcurrently() throws Exception {
+    	// given
+    	final ExecutorService executor = Executors.newFixedThreadPool(2);
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withEntityManagerFactory(emf).withExecutor(executor).withParallelFacets(true);
+    	try {
+    		// when
+    		final SearchResult<Person> result = repository.search(SearchBuilder.selectAll()
+    				.where(SearchCriteria.EQ("skill.id", scientist.getId())).facets("skill.name", "id").build());
+    		final SearchResult<Person> nothing = repository.search(SearchBuilder.selectAll()
+    				.where(SearchCriteria.RI("age", maxAge, 0))
+    				.facets("skill.name").build());
+    		// then
+    		Assert.assertEquals(Collections.<Object, Long>singletonMap(scientist.getName(), 2L),
+    				result.getFacets().get("skill.name"));
+    		Assert.assertEquals(2, result.getFacets().get("id").size());
+    		Assert.assertEquals(Long.valueOf(1), result.getFacets().get("id").get(initialPersons[0].getId()));
+    		Assert.assertTrue(nothing.getFacets().get("skill.name").isEmpty());
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
+    @Test
+    public void givenNullableSorting_whenIteratingSearch_shouldFetchAllEntities() {
+    	// given
+    	final Person nameless = new Person(initialPersons.length + 1, null, 30);
+    	em.getTransaction().begin();
+    	em.persist(nameless);
+    	em.getTransaction().commit();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class);
+    	// when
+    	final List<Integer> ascending = new ArrayList<Integer>();
+    	final Iterator<Person> ascendingIterator = repository.searchIterator(SearchBuilder.selectAll()
+    			.sortBy(SortingCriteria.ASC("name")).build(), 1);
+    	while (ascendingIterator.hasNext()) {
+    		ascending.add(ascendingIterator.next().getId());
+    	}
+    	final List<Integer> descending = new ArrayList<Integer>();
+    	final Iterator<Person> descendingIterator = repository.searchIterator(SearchBuilder.selectAll()
+    			.sortBy(SortingCriteria.DESC("name")).build(), 2);
+    	while (descendingIterator.hasNext()) {
+    		descending.add(descendingIterator.next().getId());
+    	}
+    	// then
+    	Assert.assertEquals(initialPersons.length + 1, ascending.size());
+    	Assert.assertEquals(initialPersons.length + 1, new HashSet<Integer>(ascending).size());
+    	Assert.assertEquals(initialPersons.length + 1, descending.size());
+    	Assert.assertEquals(initialPersons.length + 1, new HashSet<Integer>(descending).size());
+    	Assert.assertTrue(descending.contains(nameless.getId()));
+    }
+    
+    @Test
+    public void givenNullValue_whenSearchingTautologiesAndNegatedContradictions_shouldNotMatchIt() {
+    	// given
+    	final Person nameless = new Person(initialPersons.length + 1, null, 30);
+    	em.getTransaction().begin();
+    	em.persist(nameless);
+    	em.getTransaction().commit();
+    	final SearchCriteria named = SearchCriteria.EQ("name", initialPersons[0].getName());
+    	// when
+    	final SearchResult<Person> tautology = this.repo.search(SearchBuilder.selectAll()
+    			.where(SearchCriteria.OR(named, SearchCriteria.NO(named))).build());
+    	final SearchResult<Person> negatedContradiction = this.repo.search(SearchBuilder.selectAll()
+    			.where(SearchCriteria.NO(SearchCriteria.AND(named,
+    					SearchCriteria.EQ("name", initialPersons[1].getName())))).build());
+    	final SearchResult<Person> negatedEmptyRange = this.repo.search(SearchBuilder.selectAll()
+    			.where(SearchCriteria.NO(SearchCriteria.RI("age", maxAge, 0))).build());
+    	// then
+    	Assert.assertEquals(initialPersons.length, tautology.getData().size());
+    	Assert.assertEquals(initialPersons.length, negatedContradiction.getData().size());
+    	Assert.assertEquals(initialPersons.length + 1, negatedEmptyRange.getData().size());
+    	Assert.assertFalse(tautology.getData().contains(nameless));
+    	Assert.assertFalse(negatedContradiction.getData().contains(nameless));
+    }
+    
+    @Test
+    public void givenEntityWithoutAssociation_whenSortingAndGroupingThroughIt_shouldKeepIt() {
+    	// given
+    	final Person unskilled = new Person(initialPersons.length + 1, "Nobody", 30);
+    	em.getTransaction().begin();
+    	em.persist(unskilled);
+    	em.getTransaction().commit();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class);
+    	// when
+    	final SearchResult<Person> sorted = repository.search(SearchBuilder.selectPage(1, 10)
+    			.sortBy(SortingCriteria.ASC("skill.name")).build());
+    	final SearchResult<Tuple> selected = repository.searchProjection(SearchBuilder
+    			.selectAttributes("name", "skill.name").where(SearchCriteria.EQ("id", unskilled.getId())).build(),
+    			Tuple.class);
+    	final List<Map<String, Object>> groups = repository.aggregate(AggregationBuilder.groupBy("skill.name")
+    			.count("persons").sortBy(SortingCriteria.DESC("skill.name")).build());
+    	// then
+    	Assert.assertEquals(initialPersons.length + 1, sorted.getItemsFound());
+    	Assert.assertEquals(initialPersons.length + 1, sorted.getData().size());
+    	Assert.assertTrue(sorted.getData().contains(unskilled));
+    	Assert.assertEquals(1, selected.getData().size());
+    	Assert.assertNull(selected.getData().get(0).get("skill.name"));
+    	Assert.assertEquals(3, groups.size());
+    	long persons = 0;
+    	for (Map<String, Object> group : groups) {
+    		persons += ((Number) group.get("persons")).longValue();
+		}
+    	Assert.assertEquals(initialPersons.length + 1, persons);
+    }
+    
+    private static void persistAwards() {
+    	em.getTransaction().begin();
+    	em.persist(new Award(1, "Copley Medal", initialPersons[0]));
+    	em.persist(new Award(2, "Royal Medal", initialPersons[0]));
+    	em.persist(new Award(3, "Copley Medal", initialPersons[1]));
+    	em.persist(new Award(4, "Nobel Prize", initialPersons[1]));
+    	em.persist(new Award(5, "Nobel Prize", initialPersons[3]));
+    	em.getTransaction().commit();
+    	em.clear();
+    }
+    
+    @Test
+    public void givenCollectionRestriction_whenSearchingProjection_shouldReturnRowPerEntity() {
+    	// given
+    	persistAwards();
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class);
+    	// when
+    	final SearchResult<String> skillNames = repository.searchProjection(SearchBuilder
+    			.selectAttributes("skill.name").where(SearchCriteria.IN("awards.name", "Copley Medal", "Nobel Prize"))
+    			.sortBy(SortingCriteria.ASC("id")).build(), String.class);
+    	// then
+    	Assert.assertEquals(Arrays.asList(scientist.getName(), scientist.getName(), worldLeader.getName()),
+    			skillNames.getData());
+    }
+    
+    @Test
+    public void givenCollectionRestriction_whenSearchingPageSortedByAssociation_shouldFindEachEntityOnce() {
+    	// given
+    	persistAwards();
+    	final Search search = SearchBuilder.selectPage(1, 2)
+    			.where(SearchCriteria.IN("awards.name", "Copley Medal", "Nobel Prize"))
+    			.sortBy(SortingCriteria.DESC("skill.name")).sortBy(SortingCriteria.ASC("id")).build();
+    	// when
+    	final SearchResult<Person> page = this.repo.search(search);
+    	// then
+    	Assert.assertEquals(3, page.getItemsFound());
+    	Assert.assertEquals(2, page.getData().size());
+    	assertSamePersonInfo(initialPersons[3], page.getData().get(0));
+    	assertSamePersonInfo(initialPersons[0], page.getData().get(1));
+    }
+    
+    @Test
+    public void givenFetchedCollection_whenSearching_shouldLoadItWithEachEntityOnce() {
+    	// given
+    	persistAwards();
+    	final PersistenceUnitUtil persistenceUnitUtil = emf.getPersistenceUnitUtil();
+    	// when
+    	final SearchResult<Person> all = this.repo.search(SearchBuilder.selectAll().fetch("awards")
+    			.sortBy(SortingCriteria.DESC("skill.name")).sortBy(SortingCriteria.ASC("id")).build());
+    	final SearchResult<Person> page = this.repo.search(SearchBuilder.selectPage(1, 2).fetch("awards")
+    			.sortBy(SortingCriteria.ASC("id")).build());
+    	// then
+    	Assert.assertEquals(initialPersons.length, all.getData().size());
+    	assertSamePersonInfo(initialPersons[2], all.getData().get(0));
+    	assertSamePersonInfo(initialPersons[3], all.getData().get(1));
+    	assertSamePersonInfo(initialPersons[0], all.getData().get(2));
+    	for (Person person : all.getData()) {
+    		Assert.assertTrue(persistenceUnitUtil.isLoaded(person, "awards"));
+		}
+    	Assert.assertEquals(2, all.getData().get(2).getAwards().size());
+    	Assert.assertEquals(initialPersons.length, page.getItemsFound());
+    	Assert.assertEquals(2, page.getData().size());
+    	assertSamePersonInfo(initialPersons[0], page.getData().get(0));
+    	assertSamePersonInfo(initialPersons[1], page.getData().get(1));
+    	Assert.assertTrue(persistenceUnitUtil.isLoaded(page.getData().get(1), "awards"));
+    	Assert.assertEquals(2, page.getData().get(1).getAwards().size());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void givenSortingThroughCollection_whenSearching_shouldFail() {
+    	this.repo.search(SearchBuilder.selectAll().sortBy(SortingCriteria.ASC("awards.name")).build());
+    }
+    
+    @Test
+    public void givenParallelFacetsAndSingleThread_whenSearchingAsync_shouldCountFacetsOnSearchThread()
+    		throws Exception {
+    	// given
+    	final ExecutorService executor = Executors.newFixedThreadPool(1);
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withEntityManagerFactory(emf).withExecutor(executor).withParallelFacets(true);
+    	try {
+    		// when
+    		final SearchResult<Person> result = repository.searchAsync(SearchBuilder.selectAll()
+    				.facets("skill.name").build()).get(30, TimeUnit.SECONDS);
+    		// then
+    		Assert.assertEquals(initialPersons.length, result.getData().size());
+    		Assert.assertEquals(Long.valueOf(2), result.getFacets().get("skill.name").get(scientist.getName()));
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
+    @Test
+    public void givenLoadedEntities_whenDeletingById_shouldDetachOnlyTheRemovedOne() {
+    	// given
+    	final Person removed = em.find(Person.class, initialPersons[0].getId());
+    	final Person kept = em.find(Person.class, initialPersons[1].getId());
+    	// when
+    	em.getTransaction().begin();
+    	this.repo.deleteByIds(Arrays.asList(removed.getId(), initialPersons.length + 1));
+    	em.getTransaction().commit();
+    	// then
+    	Assert.assertFalse(em.contains(removed));
+    	Assert.assertTrue(em.contains(kept));
+    	Assert.assertNull(em.find(Person.class, removed.getId()));
+    }
+    
+    @Test
+    public void givenCachedResult_whenInvalidatingCachingRepository_shouldSearchAgain() {
+    	// given
+    	final SearchResultCache cache = new SearchResultCache(1, TimeUnit.MINUTES);
+    	final CachingRepository<Person> repository = new CachingRepository<Person>(this.repo, Person.class, cache);
+    	final Search search = SearchBuilder.selectPage(1, 10)
+    			.where(SearchCriteria.EQ("skill.id", worldLeader.getId())).build();
+    	final SearchResult<Person> first = repository.search(search);
+    	// when
+    	repository.invalidate();
+    	final SearchResult<Person> second = repository.search(search);
+    	// then
+    	Assert.assertNotSame(first, second);
+    	Assert.assertEquals(0, cache.getHitCount());
+    	Assert.assertEquals(2, cache.getMissCount());
+    }
+    
+    @Test
+    public void givenLongIds_whenRetrievingAll_thenShouldKeyEntitiesByGivenIds() {
+    	// given
+    	final Person managed = this.repo.retrieve(initialPersons[1].getId());
+    	final List<Long> ids = Arrays.asList(initialPersons[1].getId().longValue(),
+    			initialPersons[0].getId().longValue(), (long) initialPersons.length + 1);
+    	// when
+    	final Map<Serializable, Person> retrieved = this.repo.retrieveAll(ids);
+    	// then
+    	Assert.assertEquals(Arrays.<Serializable>asList(ids.get(0), ids.get(1)), new ArrayList<>(retrieved.keySet()));
+    	Assert.assertSame(managed, retrieved.get(ids.get(0)));
+    	assertSamePersonInfo(initialPersons[0], retrieved.get(ids.get(1)));
+    }
+    
+    @Test
+    public void givenStringBoundsAndValues_whenOptimizing_shouldKeepThemForTheDatabaseCollation() {
+    	// given
+    	final SearchCriteria[] bounds = { SearchCriteria.GE("name", "a"), SearchCriteria.LE("name", "B") };
+    	final SearchCriteria[] values = { SearchCriteria.EQ("name", "a"), SearchCriteria.EQ("name", "A") };
+    	// when
+    	final SearchCriteria[] optimizedBounds = SearchCriteriaOptimizer.optimize(bounds);
+    	final SearchCriteria[] optimizedValues = SearchCriteriaOptimizer.optimize(values);
+    	// then
+    	Assert.assertFalse(SearchCriteriaOptimizer.matchesNothing(optimizedBounds));
+    	Assert.assertArrayEquals(new SearchCriteria[] { SearchCriteria.RI("name", "a", "B") }, optimizedBounds);
+    	Assert.assertFalse(SearchCriteriaOptimizer.matchesNothing(optimizedValues));
+    	Assert.assertArrayEquals(values, optimizedValues);
+    }
+    
+    @Test
+    public void givenStringRangeInvertedInJavaOrder_whenOptimizing_shouldKeepIt() {
+    	// given
+    	final SearchCriteria[] criterias = { SearchCriteria.RI("name", "a", "B") };
+    	// when
+    	final SearchCriteria[] optimized = SearchCriteriaOptimizer.optimize(criterias);
+    	// then
+    	Assert.assertFalse(SearchCriteriaOptimizer.matchesNothing(optimized));
+    	Assert.assertArrayEquals(criterias, optimized);
+    	Assert.assertTrue(SearchCriteriaOptimizer.matchesNothing(
+    			SearchCriteriaOptimizer.optimize(new SearchCriteria[] { SearchCriteria.RI("age", 65, 18) })));
+    }
+    
+    @Test
+    public void givenParallelCountAndSingleThread_whenSearchingAsync_shouldCountOnSearchThread() throws Exception {
+    	// given
+    	final ExecutorService executor = Executors.newFixedThreadPool(1);
+    	final JpaRepository<Person> repository = new JpaRepository<Person>(em, Person.class)
+    			.withEntityManagerFactory(emf).withExecutor(executor).withParallelCount(1, TimeUnit.SECONDS);
+    	try {
+    		// when
+    		final SearchResult<Person> result = repository.searchAsync(SearchBuilder.selectPage(1, 1)
+    				.sortBy(SortingCriteria.ASC("id")).build()).get(30, TimeUnit.SECONDS);
+    		// then
+    		Assert.assertEquals(1, result.getData().size());
+    		Assert.assertEquals(initialPersons.length, result.getItemsFound());
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    }
+    
 }
@@ -1,10 +1,13 @@
 package com.jciombalo.utils.persistence.test.entity;
 
+import java.util.List;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
 import javax.persistence.Table;
 
 @Entity @Table(name = "persons")
@@ -14,6 +17,7 @@ public class Person {
 	private String name;
 	private Integer age;
 	private Skill skill;
+	private List<Award> awards;
 
 	public Person() {
 		super();
@@ -76,6 +80,15 @@ public class Person {
 		this.skill = skill;
 	}
 
+	@OneToMany(mappedBy = "person")
+	public List<Award> getAwards() {
+		return awards;
+	}
+
+	public void setAwards(List<Award> awards) {
+		this.awards = awards;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -1,10 +1,10 @@
-CREATE TABLE skills (
+CREATE TABLE IF NOT EXISTS skills (
   skill_id int(11) NOT NULL,
   skill_name varchar(255),
   PRIMARY KEY (skill_id)
 );
 
-CREATE TABLE persons (
+CREATE TABLE IF NOT EXISTS persons (
   person_id int(11) NOT NULL,
   person_name varchar(255) DEFAULT NULL,
   person_age int(11) NOT NULL,
@@ -12,3 +12,11 @@ CREATE TABLE persons (
   PRIMARY KEY (person_id),
   FOREIGN KEY (skill_id) REFERENCES skills(skill_id)
 );
+
+CREATE TABLE IF NOT EXISTS awards (
+  award_id int(11) NOT NULL,
+  award_name varchar(255),
+  person_id int(11) NOT NULL,
+  PRIMARY KEY (award_id),
+  FOREIGN KEY (person_id) REFERENCES persons(person_id)
+);